@@ -0,0 +1,119 @@
+package tracker;
+
+import common.TaskExecutors;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps N keep-alive connections of the blocking server busy with small requests (sources of a file),
+ * then reports throughput, the peak number of platform threads, heap and resident memory:
+ * <pre>
+ *   ./gradlew benchExecutors    both executors, one JVM each
+ *   --executor=pool|virtual --connections=10000 --seconds=10
+ * </pre>
+ * The load is generated by a single selector thread of the same process, so it needs about 2N file descriptors.
+ */
+public class ExecutorBenchmark {
+  private static final int REQUEST_SIZE = Integer.BYTES + 1 + Integer.BYTES;  // <length> <3: Byte> <fileId: Int>
+  private static final int RESPONSE_SIZE = Integer.BYTES + Integer.BYTES;     // <length> <0: Int>, no seeds
+
+  public static void main(String[] args) throws Exception {
+    Options options = Options.parse(args);
+    String executor = options.get("executor", "pool");
+    int connections = options.getInt("connections", 10_000);
+    int seconds = options.getInt("seconds", 10);
+
+    Path dir = Files.createTempDirectory("bench");
+    try (Journal journal = new Journal(dir.resolve("journal.bin"), Journal.Durability.ASYNC, 100_000, id -> true);
+         Server server = new Server(new Controller(journal, ShardMap.single(), null), 0, TaskExecutors.newExecutor(executor))) {
+      Thread acceptor = new Thread(server::listen, "bench-acceptor");
+      acceptor.setDaemon(true);
+      acceptor.start();
+
+      ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+      threads.resetPeakThreadCount();
+
+      try (Selector selector = Selector.open()) {
+        for (int i = 0; i < connections; i++) connect(selector, server.getPort());
+
+        run(selector, 1);  // warm up
+        long responses = run(selector, seconds);
+
+        System.gc();
+        long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        System.out.printf("executor=%s connections=%d requests/s=%d peakThreads=%d heapMB=%d rssMB=%s%n",
+            executor, connections, responses / seconds, threads.getPeakThreadCount(), heap >> 20, residentMegabytes());
+
+        for (SelectionKey key : selector.keys()) key.channel().close();
+      }
+    }
+  }
+
+  private static void connect(Selector selector, int port) throws IOException {
+    SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+    channel.configureBlocking(false);
+    channel.register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(RESPONSE_SIZE));
+
+    ByteBuffer hello = ByteBuffer.allocate(1 + REQUEST_SIZE);
+    hello.put(Controller.KEEP_ALIVE);
+    putRequest(hello);
+    hello.flip();
+    writeFully(channel, hello);
+  }
+
+  // every connection has a single request in flight, the next one is sent once the response is read
+  private static long run(Selector selector, int seconds) throws IOException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+    ByteBuffer request = ByteBuffer.allocate(REQUEST_SIZE);
+    long responses = 0;
+
+    while (System.nanoTime() < deadline) {
+      selector.select(100);
+      for (SelectionKey key : selector.selectedKeys()) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        ByteBuffer response = (ByteBuffer) key.attachment();
+        if (channel.read(response) < 0) throw new IOException("The server closed a connection");
+        if (response.hasRemaining()) continue;
+
+        response.clear();
+        responses++;
+        request.clear();
+        putRequest(request);
+        request.flip();
+        writeFully(channel, request);
+      }
+      selector.selectedKeys().clear();
+    }
+
+    return responses;
+  }
+
+  private static void putRequest(ByteBuffer buffer) {
+    buffer.putInt(1 + Integer.BYTES).put((byte) 3).putInt(0);
+  }
+
+  private static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) channel.write(buffer);
+  }
+
+  private static String residentMegabytes() throws IOException {
+    Path status = Paths.get("/proc/self/status");
+    if (!Files.exists(status)) return "n/a";
+
+    for (String line : Files.readAllLines(status)) {
+      if (line.startsWith("VmRSS:")) return String.valueOf(Long.parseLong(line.replaceAll("\\D", "")) >> 10);
+    }
+    return "n/a";
+  }
+}
@@ -0,0 +1,31 @@
+package common;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Executors of the <tt>--executor</tt> option, shared by the tracker and the client.
+ */
+public final class TaskExecutors {
+  private TaskExecutors() {}
+
+  /**
+   * <tt>pool</tt> is a cached pool of platform threads, <tt>virtual</tt> is a virtual thread per task (JDK 21+):
+   * the blocking code of a task stays the same, but a waiting task doesn't hold an OS thread.
+   * The sources target Java 8, so the virtual one is looked up reflectively.
+   */
+  public static ExecutorService newExecutor(String kind) {
+    switch (kind) {
+      case "pool":
+        return Executors.newCachedThreadPool();
+      case "virtual":
+        try {
+          return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException err) {
+          throw new IllegalStateException("Virtual threads need JDK 21 or newer", err);
+        }
+      default:
+        throw new IllegalArgumentException("Unknown executor " + kind);
+    }
+  }
+}
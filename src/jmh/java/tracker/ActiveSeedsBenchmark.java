@@ -0,0 +1,78 @@
+package tracker;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads of one big swarm while its seeds announce. Every seed shares the hot file and one of the others,
+ * an announce moves the seed to another file, so small swarms churn while the hot one stays of the same size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ActiveSeedsBenchmark {
+  private static final int HOT_FILE = 0;
+  private static final int FILES = 1000;
+  private static final int SAMPLE_SIZE = 50;
+
+  @Param({"1000", "100000"})
+  private int swarmSize;
+
+  private ActiveSeeds activeSeeds;
+  private Seed[] seeds;
+
+  @Setup public void setUp() throws UnknownHostException {
+    activeSeeds = new ActiveSeeds(5, id -> true);
+    seeds = new Seed[swarmSize];
+
+    for (int i = 0; i < swarmSize; i++) {
+      byte[] ip = {10, (byte) (i >> 16), (byte) (i >> 8), (byte) i};
+      seeds[i] = new Seed(InetAddress.getByAddress(ip), (short) 6881);
+      activeSeeds.update(seeds[i], new int[]{HOT_FILE, 1 + i % FILES});
+    }
+  }
+
+  // every thread gets its own sequence, the same one in every run
+  @State(Scope.Thread)
+  public static class Announcer {
+    private static final AtomicInteger threads = new AtomicInteger();
+    private final SplittableRandom random = new SplittableRandom(threads.incrementAndGet());
+
+    void announce(ActiveSeeds activeSeeds, Seed[] seeds) {
+      Seed seed = seeds[random.nextInt(seeds.length)];
+      activeSeeds.update(seed, new int[]{HOT_FILE, 1 + random.nextInt(FILES)});
+    }
+  }
+
+
+  @Benchmark @Group("of") @GroupThreads(3)
+  public List<Seed> of() {
+    return activeSeeds.of(HOT_FILE);
+  }
+
+  @Benchmark @Group("of") @GroupThreads(1)
+  public void announceWhileRead(Announcer announcer) {
+    announcer.announce(activeSeeds, seeds);
+  }
+
+  @Benchmark @Group("sample") @GroupThreads(3)
+  public List<Seed> sample() {
+    return activeSeeds.sample(HOT_FILE, SAMPLE_SIZE);
+  }
+
+  @Benchmark @Group("sample") @GroupThreads(1)
+  public void announceWhileSampled(Announcer announcer) {
+    announcer.announce(activeSeeds, seeds);
+  }
+
+  @Benchmark @Threads(4)
+  public void announce(Announcer announcer) {
+    announcer.announce(activeSeeds, seeds);
+  }
+}
@@ -0,0 +1,38 @@
+package tracker;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploads by concurrent clients: concurrent adds are written and forced by one batch, so throughput of
+ * the durable modes depends on how many of them wait together.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class JournalBenchmark {
+  @Param({"SYNC", "WRITE", "ASYNC"})
+  private Journal.Durability durability;
+
+  private TempJournal files;
+
+  @Setup public void setUp() throws IOException {
+    files = new TempJournal(durability, 100_000);
+  }
+
+  @TearDown public void tearDown() throws IOException {
+    files.close();
+  }
+
+  @Benchmark @Threads(1)
+  public int add() throws IOException {
+    return files.journal.add(1024, "some file name.bin");
+  }
+
+  @Benchmark @Threads(8)
+  public int addConcurrently() throws IOException {
+    return files.journal.add(1024, "some file name.bin");
+  }
+}
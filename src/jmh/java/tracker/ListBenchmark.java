@@ -0,0 +1,40 @@
+package tracker;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The response of the list route: half of the files come from the snapshot, the rest from the tail.
+ * Uploads wait for their writes one by one, so each batch has a single record and the journal
+ * is compacted exactly once, in the middle.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ListBenchmark {
+  @Param({"10000", "1000000"})
+  private int numOfFiles;
+
+  private TempJournal files;
+  private ByteArrayOutputStream response;
+
+  @Setup public void setUp() throws IOException {
+    files = new TempJournal(Journal.Durability.WRITE, numOfFiles / 2 + 1);
+    for (int i = 0; i < numOfFiles; i++) files.journal.add(i, "file-" + i + ".bin");
+    response = new ByteArrayOutputStream(64 * numOfFiles);
+  }
+
+  @TearDown public void tearDown() throws IOException {
+    files.close();
+  }
+
+  @Benchmark public int list() throws IOException {
+    response.reset();
+    files.journal.getListing().writeTo(new DataOutputStream(response));
+    return response.size();
+  }
+}
@@ -0,0 +1,25 @@
+package tracker;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A record in the format of the journal and of the list route.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RecordBenchmark {
+  private final Journal.Record record = new Journal.Record(123_456, 700L << 20, "Some.Linux.Distribution-x86_64.iso");
+  private final byte[] encoded = record.encode();
+
+  @Benchmark public byte[] encode() {
+    return record.encode();
+  }
+
+  @Benchmark public Journal.Record decode() throws IOException {
+    return Journal.Record.decode(encoded);
+  }
+}
@@ -0,0 +1,42 @@
+package tracker;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A request through {@link Controller#respond}: the route is found by the first byte and called by
+ * the generated class. The replication route does almost nothing, so it shows the cost of dispatch itself.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RouteBenchmark {
+  private static final byte[] REPLICATION = {10};
+  private static final byte[] SOURCES = ByteBuffer.allocate(1 + Integer.BYTES).put((byte) 3).putInt(1).array();
+
+  private final InetAddress clientIp = InetAddress.getLoopbackAddress();
+  private TempJournal files;
+  private Controller controller;
+
+  @Setup public void setUp() throws IOException {
+    files = new TempJournal(Journal.Durability.ASYNC, 100_000);
+    files.journal.add(1024, "file.bin");
+    controller = new Controller(files.journal, ShardMap.single(), null);
+  }
+
+  @TearDown public void tearDown() throws IOException {
+    files.close();
+  }
+
+  @Benchmark public ByteBuffer replication() throws IOException {
+    return controller.respond(clientIp, ByteBuffer.wrap(REPLICATION));
+  }
+
+  @Benchmark public ByteBuffer sources() throws IOException {
+    return controller.respond(clientIp, ByteBuffer.wrap(SOURCES));
+  }
+}
@@ -0,0 +1,29 @@
+package tracker;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * A journal of a benchmark in a temporary directory, which is removed on close.
+ */
+class TempJournal implements Closeable {
+  final Journal journal;
+  private final Path dir;
+
+
+  TempJournal(Journal.Durability durability, int snapshotEvery) throws IOException {
+    this.dir = Files.createTempDirectory("jmh");
+    this.journal = new Journal(dir.resolve("journal.bin"), durability, snapshotEvery, id -> true);
+  }
+
+  @Override public void close() throws IOException {
+    journal.close();
+    try (Stream<Path> files = Files.walk(dir)) {
+      for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) Files.delete(file);
+    }
+  }
+}
@@ -1,64 +1,292 @@
 package tracker;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntPredicate;
 
-import static java.util.Collections.synchronizedSet;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
 import static tracker.Server.log;
 
-@SuppressWarnings("SynchronizationOnLocalVariableOrMethodParameter")
+/**
+ * Swarms keep seeds of each file packed into longs, and the reverse index keeps files of each seed
+ * with the time the seed announced last. An announce refreshes the seed once, whatever number of files it has,
+ * and a seed which stopped sharing a file leaves that swarm at once.
+ * Silent seeds are dropped in background by a timing wheel, so reads and announces don't scan swarms.
+ * A swarm is created when the first seed of a published file joins it, so opening a big catalog costs nothing.
+ * Seeds are written and read back by {@link SeedsCheckpoint}, so they survive a restart of the tracker.
+ */
 class ActiveSeeds {
-  private final Map<Integer, Set<Seed>> seedsOfFile = new ConcurrentHashMap<>();
-  private final int minutes;
+  private static final int WHEEL_LEVELS = 2;  // 64 seconds, then 64 minutes
 
-  public ActiveSeeds(int nLastMinutes, Collection<Integer> fileIds) {
-    fileIds.forEach(id -> seedsOfFile.put(id, emptySet()));
-    this.minutes = nLastMinutes;
+  private final Map<Integer, Swarm> seedsOfFile = new ConcurrentHashMap<>();
+  private final Map<Long, SharedFiles> filesOfSeed = new ConcurrentHashMap<>();
+  private final TimingWheel wheel = new TimingWheel(WHEEL_LEVELS, now());
+  private final ScheduledExecutorService ticker = newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "seeds-expiry");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private final IntPredicate isPublished;
+  private final int ttlSeconds;
+  private final int[] expiredBySecond = new int[60];  // written by the ticker only
+  private int ticks;
+  private volatile int expiredLastMinute;
+
+  public ActiveSeeds(int nLastMinutes, IntPredicate isPublished) {
+    this.isPublished = isPublished;
+    this.ttlSeconds = (int) TimeUnit.MINUTES.toSeconds(nLastMinutes);
+    ticker.scheduleAtFixedRate(this::tick, 1, 1, TimeUnit.SECONDS);
   }
 
-  public void prepare(int fileId) {
-    seedsOfFile.computeIfAbsent(fileId, id -> emptySet());
+  /**
+   * The seed shares exactly these files now, it joins new swarms and leaves the ones not listed.
+   * Files which were not published are ignored.
+   */
+  public void update(Seed seed, int[] fileIds) {
+    long peer = pack(seed);
+    if (peer == 0) return;
+
+    IntSet shared = new IntSet(fileIds.length);
+    for (int fileId : fileIds) {
+      if (isPublished.test(fileId)) shared.add(fileId);
+    }
+
+    while (true) {
+      SharedFiles seedFiles = filesOfSeed.computeIfAbsent(peer, this::join);
+      synchronized (seedFiles) {
+        if (seedFiles.isExpired) continue;  // expired meanwhile, register the seed again
+
+        seedFiles.lastSeen = now();
+        seedFiles.files.forEach(fileId -> {
+          if (!shared.contains(fileId)) seedsOfFile.get(fileId).remove(peer);
+        });
+        shared.forEach(fileId -> swarmOf(fileId).add(peer));
+        seedFiles.files = shared;
+        return;
+      }
+    }
   }
 
   /**
-   * Add seed to a number of active one.
-   * If the <tt>fileId</tt> was not "prepared" before, nothing will be done.
-   * Call <tt>prepare</tt> method.
+   * Applies changes since the last announce, the cost depends on the size of changes only.
+   * Returns false if the seed is not known (never announced or expired), then it should send all the files.
    */
-  public void addIfPrepared(int fileId, Seed seed) {
-    seedsOfFile.computeIfPresent(fileId, (id, set) -> {
-      set.add(seed);
-      return set;
-    });
+  public boolean updateDelta(Seed seed, int[] added, int[] removed) {
+    long peer = pack(seed);
+    SharedFiles seedFiles = filesOfSeed.get(peer);
+    if (seedFiles == null) return false;
+
+    synchronized (seedFiles) {
+      if (seedFiles.isExpired) return false;
+
+      seedFiles.lastSeen = now();
+      for (int fileId : removed) {
+        if (seedFiles.files.remove(fileId)) seedsOfFile.get(fileId).remove(peer);
+      }
+      for (int fileId : added) {
+        if (isPublished.test(fileId) && seedFiles.files.add(fileId)) swarmOf(fileId).add(peer);
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Spare capacity of the seed and how much it has of its files: the files of <tt>partialIds</tt> have
+   * <tt>completedPercents</tt> of their blocks, the other shared ones are complete. They weight the seed in samples.
+   * Returns false if the seed is not known (never announced or expired), then it should announce first.
+   */
+  public boolean hint(Seed seed, int freeSlots, int[] partialIds, int[] completedPercents) {
+    long peer = pack(seed);
+    SharedFiles seedFiles = filesOfSeed.get(peer);
+    if (seedFiles == null) return false;
+
+    Map<Integer, Integer> partial = new HashMap<>();
+    for (int i = 0; i < partialIds.length; i++) partial.put(partialIds[i], completedPercents[i]);
+
+    synchronized (seedFiles) {
+      if (seedFiles.isExpired) return false;
+
+      seedFiles.files.forEach(fileId ->
+          seedsOfFile.get(fileId).hint(peer, Swarm.hints(partial.getOrDefault(fileId, 100), freeSlots)));
+      return true;
+    }
   }
 
   /**
    * Returns seeds sharing file.
-   * If a seed was not active too long (5 minutes), skip it
+   * Seeds which were not active too long (5 minutes) are already removed.
    */
   public List<Seed> of(int fileId) {
-    Set<Seed> seeds = seedsOfFile.getOrDefault(fileId, emptySet());
+    Swarm swarm = seedsOfFile.get(fileId);
+    List<Seed> result = new ArrayList<>();
+
+    if (swarm != null) {
+      for (long peer : swarm.toArray()) result.add(Seed.unpack(peer));
+    }
+    return result;
+  }
+
+
+  /**
+   * Returns up to <tt>max</tt> seeds sharing file, chosen at random, so every client gets its own part of a big swarm.
+   * Idle seeds which have more of the file are more likely to be chosen and tend to come first, see {@link #hint}.
+   */
+  public List<Seed> sample(int fileId, int max) {
+    Swarm swarm = seedsOfFile.get(fileId);
     List<Seed> result = new ArrayList<>();
 
-    // do sync on reads of synchronized sets
-    synchronized (seeds) {
-      Iterator<Seed> iterator = seeds.iterator();
+    if (swarm != null) {
+      for (long peer : swarm.sample(max, ThreadLocalRandom.current())) result.add(Seed.unpack(peer));
+    }
+    return result;
+  }
+
+  /**
+   * Number of swarms with at least one seed. Gauges of swarms walk all of them, they are for monitoring only.
+   */
+  public int numOfSwarms() {
+    return (int) seedsOfFile.values().stream().filter(swarm -> swarm.size() > 0).count();
+  }
 
-      while (iterator.hasNext()) {
-        Seed candidate = iterator.next();
+  public long numOfSwarmPeers() {
+    return seedsOfFile.values().stream().mapToLong(Swarm::size).sum();
+  }
 
-        if (candidate.wasActiveLast(minutes)) {
-          result.add(candidate);
-        } else {
-          iterator.remove();
-        }
+  public int largestSwarm() {
+    return seedsOfFile.values().stream().mapToInt(Swarm::size).max().orElse(0);
+  }
+
+  public int numOfSeeds() {
+    return filesOfSeed.size();
+  }
+
+  public int expiredLastMinute() {
+    return expiredLastMinute;
+  }
+
+  /**
+   * <tt>(<peer: Long> <lastSeen: Int> <count: Int> (<fileId: Int>)*)* <0: Long></tt>, seeds with their files
+   * and the second they announced last. Each seed is copied under its own lock, announces go on meanwhile.
+   * Returns the number of seeds written.
+   */
+  int writeTo(DataOutputStream out) throws IOException {
+    int written = 0;
+    for (Map.Entry<Long, SharedFiles> entry : filesOfSeed.entrySet()) {
+      SharedFiles seedFiles = entry.getValue();
+      int lastSeen;
+      int[] files;
+      synchronized (seedFiles) {
+        if (seedFiles.isExpired) continue;
+        lastSeen = seedFiles.lastSeen;
+        files = seedFiles.files.toArray();
       }
+
+      out.writeLong(entry.getKey());
+      out.writeInt(lastSeen);
+      out.writeInt(files.length);
+      for (int fileId : files) out.writeInt(fileId);
+      written++;
     }
 
-    return result;
+    out.writeLong(0);  // never a packed seed
+    return written;
+  }
+
+  /**
+   * Adds seeds written by {@link #writeTo} which are not expired yet. They expire when they would have
+   * without a restart, so they announce again at their usual pace instead of all at once.
+   * Files which are not published anymore are skipped, seeds which have announced already are kept as they are.
+   * Returns the number of seeds added.
+   */
+  int readFrom(DataInputStream in) throws IOException {
+    int now = now();
+    int restored = 0;
+
+    while (true) {
+      long peer = in.readLong();
+      if (peer == 0) return restored;
+
+      int lastSeen = in.readInt();
+      int count = in.readInt();
+      IntSet shared = new IntSet(count);
+      for (int i = 0; i < count; i++) {
+        int fileId = in.readInt();
+        if (isPublished.test(fileId)) shared.add(fileId);
+      }
+      if (now - lastSeen >= ttlSeconds) continue;
+
+      SharedFiles seedFiles = new SharedFiles();
+      synchronized (seedFiles) {
+        if (filesOfSeed.putIfAbsent(peer, seedFiles) != null) continue;
+        seedFiles.lastSeen = lastSeen;
+        seedFiles.files = shared;
+        shared.forEach(fileId -> swarmOf(fileId).add(peer));
+      }
+      wheel.schedule(peer, lastSeen + ttlSeconds);
+      restored++;
+    }
   }
 
-  private static Set<Seed> emptySet() {
-    return synchronizedSet(new HashSet<>());
+  private Swarm swarmOf(int fileId) {
+    return seedsOfFile.computeIfAbsent(fileId, id -> new Swarm());
+  }
+
+  private SharedFiles join(long peer) {
+    wheel.schedule(peer, now() + ttlSeconds);
+    return new SharedFiles();
+  }
+
+  // expirations are counted per second over the last minute
+  private void tick() {
+    int slot = ticks++ % expiredBySecond.length;
+    int expired = expiredLastMinute - expiredBySecond[slot];
+    expiredBySecond[slot] = 0;
+
+    wheel.advance(now(), peer -> {
+      if (expire(peer)) expiredBySecond[slot]++;
+    });
+    expiredLastMinute = expired + expiredBySecond[slot];
+  }
+
+  // the seed could announce again since it was scheduled, then it's put back to the wheel
+  private boolean expire(long peer) {
+    SharedFiles seedFiles = filesOfSeed.get(peer);
+    if (seedFiles == null) return false;
+
+    synchronized (seedFiles) {
+      if (now() - seedFiles.lastSeen < ttlSeconds) {
+        wheel.schedule(peer, seedFiles.lastSeen + ttlSeconds);
+        return false;
+      }
+
+      seedFiles.isExpired = true;
+      seedFiles.files.forEach(fileId -> seedsOfFile.get(fileId).remove(peer));
+      filesOfSeed.remove(peer);
+      return true;
+    }
+  }
+
+  private static long pack(Seed seed) {
+    long peer = seed.pack();
+    if (peer == 0) log.debug("Skip {}, only IPv4 seeds are tracked", seed.ip);
+    return peer;
+  }
+
+  private static int now() {
+    return (int) Instant.now().getEpochSecond();
+  }
+
+
+  private static class SharedFiles {
+    IntSet files = new IntSet(0);
+    int lastSeen = now();
+    boolean isExpired;
   }
 }
@@ -0,0 +1,90 @@
+package tracker;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static tracker.Server.log;
+
+/**
+ * Limits of a server. A connection above <tt>maxConnections</tt> gets the busy frame
+ * <tt><-1: Int> <retryAfterMillis: Int></tt> at once and is closed, so an overloaded tracker answers fast
+ * instead of queueing. A pause in the middle of a request may last <tt>readTimeoutMillis</tt>,
+ * and a keep-alive connection may wait for its next request <tt>idleTimeoutMillis</tt>, 0 is for no limit.
+ */
+class Admission {
+  static final int BUSY = -1;
+  private static final int RETRY_AFTER_MILLIS = 1000;
+  private static final int LINGER_MILLIS = 1000;  // the client reads the busy frame before the socket is reset
+
+  final int maxConnections;
+  final int readTimeoutMillis;
+  final int idleTimeoutMillis;
+  private final Semaphore connections;
+  private final ScheduledExecutorService closer = newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "rejected-closer");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+
+  Admission(int maxConnections, int readTimeoutMillis, int idleTimeoutMillis) {
+    this.maxConnections = maxConnections;
+    this.readTimeoutMillis = readTimeoutMillis;
+    this.idleTimeoutMillis = idleTimeoutMillis;
+    this.connections = new Semaphore(maxConnections);
+  }
+
+  static Admission unlimited() {
+    return new Admission(Integer.MAX_VALUE, 0, 0);
+  }
+
+  /**
+   * Takes a place for a new connection, which is given back by <tt>release</tt> once it's closed.
+   */
+  boolean tryAdmit() {
+    return connections.tryAcquire();
+  }
+
+  void release() {
+    connections.release();
+  }
+
+  int numOfConnections() {
+    return maxConnections - connections.availablePermits();
+  }
+
+  /**
+   * Sends the busy frame and closes the connection a bit later,
+   * the request the client may have sent already is not read.
+   */
+  void reject(Socket client) {
+    log.debug("Busy, reject {}", client.getInetAddress());
+    try {
+      OutputStream out = client.getOutputStream();
+      out.write(ByteBuffer.allocate(2 * Integer.BYTES).putInt(BUSY).putInt(RETRY_AFTER_MILLIS).array());
+      out.flush();
+      client.shutdownOutput();
+    } catch (IOException err) {
+      log.debug("Can't reject {}", client.getInetAddress(), err);
+    }
+
+    closer.schedule(() -> {
+      try {
+        client.close();
+      } catch (IOException ignored) {
+        // it's being closed anyway
+      }
+    }, LINGER_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  boolean isTimedOut(long silentMillis, boolean isIdle) {
+    long timeout = isIdle ? idleTimeoutMillis : readTimeoutMillis;
+    return timeout > 0 && silentMillis > timeout;
+  }
+}
@@ -0,0 +1,187 @@
+package tracker;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static tracker.Server.log;
+
+/**
+ * Ids of published files in increasing order, with names indexed by trigrams of their lower case.
+ * A search walks only the files which have the rarest trigram of the query, and checks their names.
+ * A cursor of pagination is the last id seen, so pages stay stable while new files are published.
+ * <p>
+ * Only ids are kept, records are read from the journal. The catalog is filled from the journal in background,
+ * searches wait until it's done; a file is looked up by id in the journal itself.
+ */
+class Catalog {
+  private static final int GRAM = 3;
+
+  private final Journal journal;
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private final CountDownLatch isBuilt = new CountDownLatch(1);
+
+  // guarded by lock
+  private int[] ids = new int[1024];
+  private int size;
+  private final Map<Long, Postings> postings = new HashMap<>();
+  private List<Journal.Record> backlog = new ArrayList<>();  // written while the catalog is built, null after
+
+
+  Catalog(Journal journal) {
+    this.journal = journal;
+    journal.subscribe(this::append);
+    Journal.Listing listing = journal.getListing();
+
+    Thread builder = new Thread(() -> build(listing), "catalog-builder");
+    builder.setDaemon(true);
+    builder.start();
+  }
+
+  /**
+   * Up to <tt>limit</tt> files with ids greater than <tt>afterId</tt>, whose names start with the query
+   * or contain it, case insensitive. An empty query matches every file.
+   */
+  List<Journal.Record> search(String query, boolean isPrefix, int afterId, int limit) throws IOException {
+    String needle = lowerCase(query);
+    List<Journal.Record> found = new ArrayList<>(Math.min(limit, 64));
+    await();
+
+    // ids are only appended, so the prefix seen under the lock is walked without it
+    int[] candidates;
+    int count;
+    lock.readLock().lock();
+    try {
+      Postings rarest = null;
+      for (int i = 0; i + GRAM <= needle.length(); i++) {
+        Postings matching = postings.get(trigram(needle, i));
+        if (matching == null) return Collections.emptyList();
+        if (rarest == null || matching.size < rarest.size) rarest = matching;
+      }
+
+      // the query is too short to be indexed, every file is a candidate
+      candidates = rarest == null ? ids : rarest.ids;
+      count = rarest == null ? size : rarest.size;
+    } finally {
+      lock.readLock().unlock();
+    }
+
+    for (int i = firstAfter(candidates, count, afterId); i < count && found.size() < limit; i++) {
+      Journal.Record record = journal.find(candidates[i]);
+      if (record != null && matches(record.name, needle, isPrefix)) found.add(record);
+    }
+    return found;
+  }
+
+
+  private void build(Journal.Listing listing) {
+    long start = System.nanoTime();
+    try {
+      listing.forEach(this::add);
+    } catch (IOException | RuntimeException err) {
+      log.error("Can't build the catalog, it has {} files of {}", size, listing.count, err);
+    }
+
+    lock.writeLock().lock();
+    try {
+      for (Journal.Record record : backlog) {
+        if (size == 0 || record.id > ids[size - 1]) add(record);
+      }
+      backlog = null;
+    } finally {
+      lock.writeLock().unlock();
+    }
+
+    isBuilt.countDown();
+    log.info("Catalog of {} files is built in {} ms", size, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+  }
+
+  private void append(Journal.Record record) {
+    lock.writeLock().lock();
+    try {
+      if (backlog != null) backlog.add(record);
+      else add(record);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void add(Journal.Record record) {
+    lock.writeLock().lock();
+    try {
+      if (size == ids.length) ids = Arrays.copyOf(ids, 2 * size);
+      ids[size++] = record.id;
+
+      String name = lowerCase(record.name);
+      for (int i = 0; i + GRAM <= name.length(); i++) {
+        postings.computeIfAbsent(trigram(name, i), key -> new Postings()).add(record.id);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void await() throws InterruptedIOException {
+    try {
+      isBuilt.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while the catalog is built");
+    }
+  }
+
+  // the index of the first greater id among the increasing ones
+  private static int firstAfter(int[] ids, int count, int fileId) {
+    int low = 0;
+    int high = count;
+
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (ids[mid] <= fileId) low = mid + 1;
+      else high = mid;
+    }
+
+    return low;
+  }
+
+  private static boolean matches(String name, String needle, boolean isPrefix) {
+    if (isPrefix) return name.regionMatches(true, 0, needle, 0, needle.length());
+
+    for (int i = 0; i + needle.length() <= name.length(); i++) {
+      if (name.regionMatches(true, i, needle, 0, needle.length())) return true;
+    }
+    return false;
+  }
+
+  private static String lowerCase(String text) {
+    char[] chars = text.toCharArray();
+    for (int i = 0; i < chars.length; i++) chars[i] = Character.toLowerCase(chars[i]);
+    return new String(chars);
+  }
+
+  private static long trigram(String text, int from) {
+    return (long) text.charAt(from) << 32 | (long) text.charAt(from + 1) << 16 | text.charAt(from + 2);
+  }
+
+
+  // increasing ids of the files which have a trigram, each one once
+  private static class Postings {
+    int[] ids = new int[2];
+    int size;
+
+    void add(int id) {
+      if (size > 0 && ids[size - 1] == id) return;
+      if (size == ids.length) ids = Arrays.copyOf(ids, 2 * size);
+      ids[size++] = id;
+    }
+  }
+}
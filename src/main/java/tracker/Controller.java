@@ -1,65 +1,139 @@
 package tracker;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
+import java.util.stream.Collectors;
 
 import static java.lang.Math.max;
+import static java.lang.Math.min;
 import static tracker.Server.log;
 
 @SuppressWarnings("unused")
 public class Controller {
+  /**
+   * The first byte of a connection which carries many requests: <tt>(<length: Int> <request>)*</tt>,
+   * each response is sent back in the same order as <tt><length: Int> <response></tt>.
+   */
+  public static final byte KEEP_ALIVE = 0;
+  public static final int MAX_FRAME_SIZE = 1 << 20;
+
   private static final int LAST_FIVE_MINUTES = 5;
+  private static final int MAX_PAGE_SIZE = 1000;
+  private static final int MAX_SAMPLE_SIZE = 1000;
+  private static final int MAX_BATCH_SIZE = 1000;
 
   private final Journal filesJournal;
+  private final ShardMap shards;
+  private final Replica replica;  // null on the leader
+  private final Catalog catalog;
   private final ActiveSeeds activeSeeds;
+  private final Metrics metrics;
+  private final InstrumentedRoute[] routes = new InstrumentedRoute[256];  // indexed by the request byte
+  private final boolean[] mayBlock = new boolean[256];
 
 
-  public Controller(Journal filesJournal) {
-    this.filesJournal = filesJournal;
-    this.activeSeeds = new ActiveSeeds(LAST_FIVE_MINUTES, filesJournal.getIds());
+  public Controller(Journal filesJournal, ShardMap shards, Replica replica) {
+    this(filesJournal, shards, replica, Admission.unlimited());
   }
 
-  public Route route(byte requestIdx) {
-    Method[] methods = Controller.class.getDeclaredMethods();
+  /**
+   * A follower (<tt>replica</tt> is not null) serves the catalog of the leader, uploads go to the leader.
+   * <tt>admission</tt> is the one of the server, it's asked for the number of connections.
+   */
+  Controller(Journal filesJournal, ShardMap shards, Replica replica, Admission admission) {
+    this.filesJournal = filesJournal;
+    this.shards = shards;
+    this.replica = replica;
+    this.catalog = new Catalog(filesJournal);
+    this.activeSeeds = new ActiveSeeds(LAST_FIVE_MINUTES, filesJournal::contains);
+    this.metrics = new Metrics(filesJournal, activeSeeds, admission, replica);
+
+    // default route
+    Arrays.fill(routes, new InstrumentedRoute("none", this::none));
 
-    for (Method m : methods) {
+    MethodHandles.Lookup lookup = MethodHandles.lookup();
+    for (Method m : Controller.class.getDeclaredMethods()) {
       RouteId annotation = m.getAnnotation(RouteId.class);
-      if (annotation == null || annotation.value() != requestIdx) continue;
-      log.info("/{} route", m.getName());
-      return (ip, in, out) -> m.invoke(this, ip, in, out);
+      if (annotation == null) continue;
+      routes[annotation.value() & 0xFF] = new InstrumentedRoute(m.getName(), bind(lookup, m));
+      mayBlock[annotation.value() & 0xFF] = annotation.mayBlock();
     }
+    metrics.register(routeStats());
+  }
 
-    // default route
-    return this::none;
+  public Route route(byte requestIdx) {
+    return routes[requestIdx & 0xFF];
+  }
+
+  /**
+   * Whether the route waits for the disk or other threads: the list copies the mapped snapshot, an upload waits
+   * for its commit, a lookup reads the snapshot, a search waits for the catalog. The others only touch memory.
+   */
+  public boolean mayBlock(byte requestIdx) {
+    return mayBlock[requestIdx & 0xFF];
+  }
+
+  /**
+   * Distinct routes with their counters, the default one included.
+   */
+  public Collection<InstrumentedRoute> routeStats() {
+    return Arrays.stream(routes).distinct().collect(Collectors.toList());
+  }
+
+  ActiveSeeds activeSeeds() {
+    return activeSeeds;
+  }
+
+  /**
+   * Runs a request buffered in <tt>request</tt> (from position to limit) and returns the encoded response.
+   * Throws <tt>EOFException</tt> while the request is not received completely, so the caller may wait
+   * for more bytes and try again. That's why every route reads the whole request before doing anything.
+   */
+  public ByteBuffer respond(InetAddress clientIp, ByteBuffer request) throws IOException {
+    return respond(clientIp, request, false);
+  }
+
+  /**
+   * A request which <tt>mayBeIncomplete</tt> is not counted by its route until it's received completely,
+   * so a request tried again on every part of it that comes is counted once.
+   */
+  ByteBuffer respond(InetAddress clientIp, ByteBuffer request, boolean mayBeIncomplete) throws IOException {
+    DataInputStream in = new DataInputStream(
+        new ByteArrayInputStream(request.array(), request.arrayOffset() + request.position(), request.remaining()));
+    ByteArrayOutputStream response = new ByteArrayOutputStream();
+
+    routes[in.readByte() & 0xFF].handle(clientIp, in, new DataOutputStream(response), mayBeIncomplete);
+    return ByteBuffer.wrap(response.toByteArray());
   }
 
 
   // список раздаваемых файлов
-  @RouteId(1)
+  @RouteId(value = 1, mayBlock = true)
   private void list(InetAddress clientIp, DataInputStream in, DataOutputStream out) throws IOException {
-    List<Journal.Record> records = filesJournal.getRecords();
-
-    out.writeInt(records.size());
-    for (Journal.Record record : records) {
-      out.writeInt(record.id);
-      out.writeUTF(record.name);
-      out.writeLong(record.size);
-    }
+    filesJournal.getListing().writeTo(out);
   }
 
   // публикация нового файла
-  @RouteId(2)
+  @RouteId(value = 2, mayBlock = true)
   private void upload(InetAddress clientIp, DataInputStream in, DataOutputStream out) throws IOException {
     String fileName = in.readUTF();
     long fileSize = in.readLong();
 
-    int fileId = filesJournal.add(fileSize, fileName);
-    activeSeeds.prepare(fileId);
-    out.writeInt(fileId);
+    if (replica != null) throw new IOException("Uploads are accepted by the leader only");
+    out.writeInt(filesJournal.add(fileSize, fileName));
   }
 
   @RouteId(3)
@@ -67,12 +141,29 @@ public class Controller {
   private void sources(InetAddress clientIp, DataInputStream in, DataOutputStream out) throws IOException {
     int fileId = in.readInt();
 
-    List<Seed> seeds = activeSeeds.of(fileId);
-    out.writeInt(seeds.size());
+    writeSeeds(out, activeSeeds.of(fileId));
+  }
 
-    for (Seed seed : seeds) {
-      out.write(seed.ip.getAddress());
-      out.writeShort(seed.port);
+  @RouteId(8)
+  // не больше maxPeers случайных клиентов, владеющих файлом
+  private void sampledSources(InetAddress clientIp, DataInputStream in, DataOutputStream out) throws IOException {
+    int fileId = in.readInt();
+    int maxPeers = min(max(0, in.readInt()), MAX_SAMPLE_SIZE);
+
+    writeSeeds(out, activeSeeds.sample(fileId, maxPeers));
+  }
+
+  @RouteId(12)
+  // случайные клиенты для нескольких файлов за один запрос
+  private void batchedSources(InetAddress clientIp, DataInputStream in, DataOutputStream out) throws IOException {
+    int maxPeers = min(max(0, in.readInt()), MAX_SAMPLE_SIZE);
+    int[] fileIds = readIds(in);
+
+    if (fileIds.length > MAX_BATCH_SIZE) throw new IOException("Too many files in a batch: " + fileIds.length);
+    out.writeInt(fileIds.length);
+    for (int fileId : fileIds) {
+      out.writeInt(fileId);
+      writeSeeds(out, activeSeeds.sample(fileId, maxPeers));
     }
   }
 
@@ -80,19 +171,137 @@ public class Controller {
   // загрузка клиентом данных о раздаваемых файлах
   private void update(InetAddress clientIp, DataInputStream in, DataOutputStream out) throws IOException {
     short clientPort = in.readShort();
-    Seed seed = new Seed(clientIp, clientPort);
+    int[] fileIds = readIds(in);
+
+    activeSeeds.update(new Seed(clientIp, clientPort), fileIds);
+    out.writeBoolean(true);  // make client happy
+  }
+
+  @RouteId(5)
+  // изменения в списке раздаваемых файлов с прошлого update
+  private void updateDelta(InetAddress clientIp, DataInputStream in, DataOutputStream out) throws IOException {
+    short clientPort = in.readShort();
+    int[] added = readIds(in);
+    int[] removed = readIds(in);
 
-    int numOfFilesShared = max(0, in.readInt());
-    while (numOfFilesShared-- > 0) {
-      int fileId = in.readInt();
-      activeSeeds.addIfPrepared(fileId, seed);
+    out.writeBoolean(activeSeeds.updateDelta(new Seed(clientIp, clientPort), added, removed));
+  }
+
+  @RouteId(13)
+  // свободные слоты раздачи клиента и доля скачанного для файлов, которые у него не целиком
+  private void hints(InetAddress clientIp, DataInputStream in, DataOutputStream out) throws IOException {
+    short clientPort = in.readShort();
+    int freeSlots = in.readShort();
+    int count = max(0, in.readInt());
+    int[] partialIds = new int[min(count, 1024)];
+    int[] completedPercents = new int[partialIds.length];
+
+    for (int i = 0; i < count; i++) {
+      if (i == partialIds.length) {
+        partialIds = Arrays.copyOf(partialIds, 2 * i);
+        completedPercents = Arrays.copyOf(completedPercents, 2 * i);
+      }
+      partialIds[i] = in.readInt();
+      completedPercents[i] = in.readByte();
     }
 
-    out.writeBoolean(true);  // make client happy
+    out.writeBoolean(activeSeeds.hint(new Seed(clientIp, clientPort), freeSlots,
+        Arrays.copyOf(partialIds, count), Arrays.copyOf(completedPercents, count)));
+  }
+
+  @RouteId(value = 6, mayBlock = true)
+  // имя и размер файла по его id
+  private void lookup(InetAddress clientIp, DataInputStream in, DataOutputStream out) throws IOException {
+    int fileId = in.readInt();
+
+    Journal.Record file = filesJournal.find(fileId);
+    out.writeBoolean(file != null);
+    if (file != null) {
+      out.writeUTF(file.name);
+      out.writeLong(file.size);
+    }
+  }
+
+  @RouteId(value = 7, mayBlock = true)
+  // поиск файлов по началу или части имени, постранично
+  private void search(InetAddress clientIp, DataInputStream in, DataOutputStream out) throws IOException {
+    boolean isPrefix = in.readBoolean();
+    String query = in.readUTF();
+    int afterId = in.readInt();
+    int limit = min(max(0, in.readInt()), MAX_PAGE_SIZE);
+
+    List<Journal.Record> files = catalog.search(query, isPrefix, afterId, limit);
+    out.writeInt(files.size());
+    for (Journal.Record file : files) {
+      out.write(file.encode());
+    }
+
+    // the page is full, there may be more files after the last one
+    out.writeInt(limit > 0 && files.size() == limit ? files.get(limit - 1).id : -1);
+  }
+
+  @RouteId(9)
+  // узлы кластера и их токены на кольце id файлов
+  private void shards(InetAddress clientIp, DataInputStream in, DataOutputStream out) throws IOException {
+    shards.writeTo(out);
+  }
+
+  @RouteId(10)
+  // отставание реплики от лидера
+  private void replication(InetAddress clientIp, DataInputStream in, DataOutputStream out) throws IOException {
+    out.writeBoolean(replica != null);
+    out.writeBoolean(replica == null || replica.isConnected());
+    out.writeInt(replica == null ? 0 : replica.lagRecords());
+    out.writeLong(replica == null ? 0 : replica.lagMillis());
+  }
+
+  @RouteId(11)
+  // счетчики, гистограммы задержек маршрутов и показатели трекера
+  private void metrics(InetAddress clientIp, DataInputStream in, DataOutputStream out) throws IOException {
+    metrics.writeTo(out, routeStats());
+  }
+
+  // <count: Int> (<ip: Int> <port: Short>)*
+  private static void writeSeeds(DataOutputStream out, List<Seed> seeds) throws IOException {
+    out.writeInt(seeds.size());
+
+    for (Seed seed : seeds) {
+      out.write(seed.ip.getAddress());
+      out.writeShort(seed.port);
+    }
+  }
+
+  // <count: Int> (<id: Int>)*, the count comes from a client so the array grows as ids are really read
+  // ids are never negative, the ones a client sends so are dropped
+  private static int[] readIds(DataInputStream in) throws IOException {
+    int count = max(0, in.readInt());
+    int[] ids = new int[min(count, 1024)];
+    int n = 0;
+
+    for (int i = 0; i < count; i++) {
+      int id = in.readInt();
+      if (id < 0) continue;
+      if (n == ids.length) ids = Arrays.copyOf(ids, 2 * n);
+      ids[n++] = id;
+    }
+
+    return ids.length == n ? ids : Arrays.copyOf(ids, n);
   }
 
   // default route
   private void none(InetAddress clientIp, DataInputStream in, DataOutputStream out) {
-    log.info("/none route");
+    log.debug("/none route");
+  }
+
+  // a generated class calls the route method directly, as if (ip, in, out) -> list(ip, in, out) was written by hand
+  private Route bind(MethodHandles.Lookup lookup, Method method) {
+    try {
+      MethodType signature = MethodType.methodType(void.class, InetAddress.class, DataInputStream.class, DataOutputStream.class);
+      CallSite site = LambdaMetafactory.metafactory(lookup, "handle", MethodType.methodType(Route.class, Controller.class),
+          signature, lookup.unreflect(method), signature);
+      return (Route) site.getTarget().invoke(this);
+    } catch (Throwable err) {
+      throw new IllegalStateException("Can't bind route " + method.getName(), err);
+    }
   }
 }
@@ -0,0 +1,87 @@
+package tracker;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts calls, failures and time spent in a route, and keeps a histogram of latencies.
+ * Adders are striped between threads, so recording is cheap enough for every request.
+ */
+public class InstrumentedRoute implements Route, InstrumentedRouteMBean {
+  public final String name;
+  private final Route route;
+  private final LongAdder calls = new LongAdder();
+  private final LongAdder failures = new LongAdder();
+  private final LongAdder nanos = new LongAdder();
+  private final LatencyHistogram latency = new LatencyHistogram();
+
+  InstrumentedRoute(String name, Route route) {
+    this.name = name;
+    this.route = route;
+  }
+
+  @Override public void handle(InetAddress clientIp, DataInputStream in, DataOutputStream out) throws IOException {
+    handle(clientIp, in, out, false);
+  }
+
+  /**
+   * A request which <tt>mayBeIncomplete</tt> is tried again once more of it is received,
+   * so running out of its bytes is not counted at all.
+   */
+  void handle(InetAddress clientIp, DataInputStream in, DataOutputStream out, boolean mayBeIncomplete)
+      throws IOException {
+    long start = System.nanoTime();
+    boolean isCounted = true;
+    try {
+      route.handle(clientIp, in, out);
+    } catch (EOFException notYet) {
+      isCounted = !mayBeIncomplete;
+      if (isCounted) failures.increment();
+      throw notYet;
+    } catch (IOException | RuntimeException err) {
+      failures.increment();
+      throw err;
+    } finally {
+      if (isCounted) {
+        long elapsed = System.nanoTime() - start;
+        nanos.add(elapsed);
+        latency.record(elapsed);
+        calls.increment();
+      }
+    }
+  }
+
+  @Override public long getCalls() {
+    return calls.sum();
+  }
+
+  @Override public long getFailures() {
+    return failures.sum();
+  }
+
+  @Override public long getMeanMicros() {
+    long calls = getCalls();
+    return calls == 0 ? 0 : nanos.sum() / calls / 1000;
+  }
+
+  @Override public long getP50Micros() {
+    return latency.percentileMicros(0.5);
+  }
+
+  @Override public long getP99Micros() {
+    return latency.percentileMicros(0.99);
+  }
+
+  @Override public long getP999Micros() {
+    return latency.percentileMicros(0.999);
+  }
+
+  @Override public String toString() {
+    return String.format("/%s: %d calls, %d failed, %d us on average, p50 %d us, p99 %d us, p999 %d us",
+        name, getCalls(), getFailures(), getMeanMicros(), getP50Micros(), getP99Micros(), getP999Micros());
+  }
+}
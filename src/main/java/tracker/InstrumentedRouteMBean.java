@@ -0,0 +1,18 @@
+package tracker;
+
+/**
+ * Counters of a route over JMX, as <tt>tracker:type=Route,name=&lt;route&gt;</tt>.
+ */
+public interface InstrumentedRouteMBean {
+  long getCalls();
+
+  long getFailures();
+
+  long getMeanMicros();
+
+  long getP50Micros();
+
+  long getP99Micros();
+
+  long getP999Micros();
+}
@@ -0,0 +1,115 @@
+package tracker;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Open-addressing set of non-negative ints, such as file ids, 4 bytes per element at most 3/4 full.
+ * Not synchronized, callers guard it.
+ */
+class IntSet {
+  private static final int MIN_CAPACITY = 4;
+  private static final int FREE = -1;
+
+  private int[] elements;
+  private int size;
+
+
+  IntSet(int expectedSize) {
+    int capacity = MIN_CAPACITY;
+    while (4 * expectedSize > 3 * capacity) capacity *= 2;
+    elements = newArray(capacity);
+  }
+
+  boolean add(int element) {
+    if (element == FREE) throw new IllegalArgumentException("Can't add " + FREE + ", it marks a free slot");
+    if (4 * (size + 1) > 3 * elements.length) resize(2 * elements.length);
+
+    int idx = indexOf(element);
+    if (elements[idx] == element) return false;
+    elements[idx] = element;
+    size++;
+    return true;
+  }
+
+  boolean contains(int element) {
+    return element != FREE && elements[indexOf(element)] == element;
+  }
+
+  boolean remove(int element) {
+    if (element == FREE) return false;
+    int idx = indexOf(element);
+    if (elements[idx] != element) return false;
+
+    delete(idx);
+    if (elements.length > MIN_CAPACITY && 8 * size < elements.length) resize(elements.length / 2);
+    return true;
+  }
+
+  void forEach(IntConsumer action) {
+    for (int element : elements) {
+      if (element != FREE) action.accept(element);
+    }
+  }
+
+  int size() {
+    return size;
+  }
+
+  int[] toArray() {
+    int[] array = new int[size];
+    int n = 0;
+    for (int element : elements) {
+      if (element != FREE) array[n++] = element;
+    }
+    return array;
+  }
+
+
+  private int indexOf(int element) {
+    int mask = elements.length - 1;
+    int idx = home(element, mask);
+    while (elements[idx] != FREE && elements[idx] != element) idx = (idx + 1) & mask;
+    return idx;
+  }
+
+  // the same backward shift as in Swarm
+  private void delete(int idx) {
+    int mask = elements.length - 1;
+    int next = idx;
+    size--;
+
+    while (true) {
+      next = (next + 1) & mask;
+      if (elements[next] == FREE) break;
+
+      int home = home(elements[next], mask);
+      boolean canMove = idx <= next ? (home <= idx || home > next) : (home <= idx && home > next);
+      if (!canMove) continue;
+
+      elements[idx] = elements[next];
+      idx = next;
+    }
+
+    elements[idx] = FREE;
+  }
+
+  private void resize(int capacity) {
+    int[] old = elements;
+    elements = newArray(capacity);
+
+    for (int element : old) {
+      if (element != FREE) elements[indexOf(element)] = element;
+    }
+  }
+
+  private static int[] newArray(int capacity) {
+    int[] array = new int[capacity];
+    Arrays.fill(array, FREE);
+    return array;
+  }
+
+  private static int home(int element, int mask) {
+    return (element * 0x9E3779B9 ^ element >>> 16) & mask;
+  }
+}
@@ -1,60 +1,605 @@
 package tracker;
 
-import java.io.IOException;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
 import java.util.stream.Collectors;
+import java.util.zip.CRC32;
 
 import static java.lang.Integer.parseUnsignedInt;
 import static java.lang.Long.parseUnsignedLong;
 import static java.lang.Math.max;
-import static org.apache.commons.io.FileUtils.touch;
-import static org.apache.commons.io.FileUtils.writeStringToFile;
+import static java.lang.Math.min;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardOpenOption.*;
+import static java.util.concurrent.Executors.newSingleThreadExecutor;
 import static tracker.Server.log;
 
 
-public class Journal {
+/**
+ * Append-only binary journal: <tt>(<length: Int> <crc32: Int> <id: Int> <name: String> <size: Long>)*</tt>,
+ * the payload of a record is encoded the same way as in the list route.
+ * <p>
+ * Records of concurrent <tt>add</tt> calls are written by a single writer thread, a whole batch
+ * at once by one write (and one fsync, if the durability asks for it).
+ * <p>
+ * Every <tt>snapshotEvery</tt> records (and on close) the journal is compacted: the file is renamed
+ * to <tt>*.compacting</tt> and the writer goes on with a new one, while another thread appends the renamed
+ * records to the memory-mapped {@link Snapshot}. Until the new snapshot is published, they are served from
+ * memory. Opening doesn't read the snapshot, only the tail (and a compacting file left by a crash) is loaded.
+ */
+public class Journal implements Closeable {
+  private static final int MAX_RECORD_SIZE = Integer.BYTES + Short.BYTES + 0xFFFF + Long.BYTES;  // the longest name
+
   private final Path path;
-  private final AtomicInteger lastFileId;
-  private final ConcurrentLinkedQueue<Record> journal;
+  private final Path compactingPath;
+  private final Path snapshotPath;
+  private final Durability durability;
+  private final int snapshotEvery;
+  private final IntPredicate isOwned;
+  private final Map<Integer, Record> tailRecords = new ConcurrentHashMap<>();  // added ones, written or not yet
+  private final List<Consumer<Record>> listeners = new CopyOnWriteArrayList<>();
+  private final Thread writer = new Thread(this::writeBatches, "journal-writer");
+  private final ExecutorService compactor = newSingleThreadExecutor(r -> {
+    Thread thread = new Thread(r, "journal-compactor");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private volatile Snapshot snapshot;
+  private volatile Listing listing;
+
+  // written records since the last snapshot, owned by the writer thread: the frozen ones are
+  // in the compacting file and go to the next snapshot, the ones of the tail are in the journal
+  private FileChannel channel;
+  private List<Record> frozen = new ArrayList<>();
+  private EncodedRecords encodedFrozen = new EncodedRecords();
+  private List<Record> tail = new ArrayList<>();
+  private EncodedRecords encodedTail = new EncodedRecords();
+  private CompletableFuture<Snapshot> compaction;  // of the frozen records, if it's running
 
+  // guarded by this
+  private int lastFileId;
+  private int size;  // records written and pending
+  private List<Record> pending = new ArrayList<>();
+  private CompletableFuture<Void> pendingCommit = new CompletableFuture<>();
+  private boolean isClosed;
+
+  public enum Durability {
+    /** <tt>add</tt> returns once its batch is written and forced to the disk */
+    SYNC,
+    /** <tt>add</tt> returns once its batch is written, it survives a crash of the process but not of the OS */
+    WRITE,
+    /** <tt>add</tt> returns at once, the batch is written a bit later */
+    ASYNC
+  }
 
-  public Journal(Path path) throws IOException {
-    log.debug("Touch a journal file");
-    touch(path.toFile());
 
+  /**
+   * New records get ids which satisfy <tt>isOwned</tt>, so nodes of a cluster allocate ids without clashes.
+   */
+  public Journal(Path path, Durability durability, int snapshotEvery, IntPredicate isOwned) throws IOException {
     this.path = path;
-    this.journal = new ConcurrentLinkedQueue<>(loadRecordsFromFile(path));
-    this.lastFileId = new AtomicInteger(journal.parallelStream().mapToInt(f -> f.id).max().orElse(-1));
+    this.compactingPath = Paths.get(path + ".compacting");
+    this.snapshotPath = Paths.get(path + ".snapshot");
+    this.snapshot = Snapshot.open(snapshotPath);
+    this.durability = durability;
+    this.snapshotEvery = max(1, snapshotEvery);
+    this.isOwned = isOwned;
+
+    // the process died in the middle of a compaction, the snapshot may have some of the records already
+    if (Files.exists(compactingPath)) {
+      try (FileChannel compacting = FileChannel.open(compactingPath, READ, WRITE)) {
+        for (Record record : loadRecords(compacting)) {
+          if (record.id <= snapshot.lastFileId) continue;
+          frozen.add(record);
+          encodedFrozen.append(record);
+        }
+      }
+      if (!frozen.isEmpty()) snapshot = writeSnapshot(snapshot, frozen, encodedFrozen);
+      frozen = new ArrayList<>();
+      encodedFrozen = new EncodedRecords();
+      Files.delete(compactingPath);
+    }
+
+    this.channel = FileChannel.open(path, CREATE, READ, WRITE);
+    for (Record record : loadRecords(channel)) {
+      if (record.id <= snapshot.lastFileId) continue;
+      tail.add(record);
+      tailRecords.put(record.id, record);
+      encodedTail.append(record);
+    }
+    this.lastFileId = tail.isEmpty() ? snapshot.lastFileId : tail.get(tail.size() - 1).id;
+    this.size = snapshot.count + tail.size();
+    this.listing = newListing();
+    log.info("Journal is opened: {} records in the snapshot, {} in the tail", snapshot.count, tail.size());
+
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  @Override public void close() throws IOException {
+    synchronized (this) {
+      isClosed = true;
+      notifyAll();
+    }
+
+    try {
+      writer.join();  // its state is owned here now
+      if (compaction != null) publishCompaction();
+      if (!tail.isEmpty()) {  // the next start loads nothing
+        startCompaction();
+        publishCompaction();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      compactor.shutdown();
+      channel.close();
+    }
+  }
+
+
+  /**
+   * Whether the file is published, the record may be not written yet with the async durability.
+   */
+  public boolean contains(int fileId) {
+    // the tail is checked first: compaction publishes the new snapshot before it forgets the tail ids
+    return tailRecords.containsKey(fileId) || snapshot.contains(fileId);
+  }
+
+  /**
+   * Returns the file with this id, or null. As with {@link #contains}, the record may be not written yet.
+   */
+  public Record find(int fileId) throws IOException {
+    Record record = tailRecords.get(fileId);  // the tail first, for the same reason
+    return record != null ? record : snapshot.find(fileId);
+  }
+
+  /**
+   * The response of the list route, encoded beforehand and refreshed once a batch of records is written.
+   */
+  public Listing getListing() {
+    return listing;
+  }
+
+  /**
+   * The listener gets every record written after this call, on the writer thread, so it should be quick.
+   * Records written before are in {@link #getListing}, ids tell which ones are seen twice.
+   */
+  public void subscribe(Consumer<Record> listener) {
+    listeners.add(listener);
   }
 
+  public void unsubscribe(Consumer<Record> listener) {
+    listeners.remove(listener);
+  }
 
-  public List<Record> getRecords() {
-    return new ArrayList<>(journal);
+  /**
+   * The greatest id, written or pending.
+   */
+  public synchronized int lastId() {
+    return lastFileId;
   }
 
-  public List<Integer> getIds() {
-    return journal.stream().mapToInt(f -> f.id).boxed().collect(Collectors.toList());
+  /**
+   * Number of records, written or pending.
+   */
+  public synchronized int size() {
+    return size;
   }
 
   public int add(long size, String name) throws IOException {
-    Record info = new Record(lastFileId.incrementAndGet(), max(0, size), name);
+    Record info;
+    CompletableFuture<Void> commit;
 
-    // simultaneous file-writes are prevented
-    synchronized (path) { writeStringToFile(path.toFile(), info.serialize() + "\n", true); }
+    synchronized (this) {
+      if (isClosed) throw new IOException("Journal is closed");
+      do lastFileId++; while (!isOwned.test(lastFileId));
+      info = new Record(lastFileId, max(0, size), name);
+      commit = enqueue(info);
+    }
 
-    journal.add(info);
+    if (durability != Durability.ASYNC) await(commit);
     return info.id;
   }
 
-  static private Collection<Record> loadRecordsFromFile(Path path) throws IOException {
+  /**
+   * Appends a record of the leader with its id, a record which is not newer than the last one is skipped.
+   * Doesn't wait for the write: after a crash the follower asks the leader again from the last written id.
+   */
+  public synchronized void replicate(Record record) throws IOException {
+    if (isClosed) throw new IOException("Journal is closed");
+    if (record.id <= lastFileId) return;
+
+    lastFileId = record.id;
+    enqueue(record);
+  }
+
+
+  // called under the lock of the journal, returns the commit of the batch the record goes to
+  private CompletableFuture<Void> enqueue(Record record) {
+    pending.add(record);
+    tailRecords.put(record.id, record);
+    size++;
+    notifyAll();
+    return pendingCommit;
+  }
+
+  // while a batch is written, the next one is collected
+  private void writeBatches() {
+    while (true) {
+      List<Record> batch = null;
+      CompletableFuture<Void> commit = null;
+
+      synchronized (this) {
+        while (pending.isEmpty() && !isClosed && !isCompacted()) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+
+        if (!pending.isEmpty()) {
+          batch = pending;
+          commit = pendingCommit;
+          pending = new ArrayList<>();
+          pendingCommit = new CompletableFuture<>();
+        } else if (isClosed) {
+          return;  // everything is written, a running compaction is published by close
+        }
+      }
+
+      if (batch != null) {
+        try {
+          write(batch);
+          commit.complete(null);
+        } catch (IOException | RuntimeException err) {  // the writer goes on, or every next add would wait forever
+          log.error("Can't write {} journal records", batch.size(), err);
+          for (Record record : batch) tailRecords.remove(record.id);
+          synchronized (this) {
+            size -= batch.size();
+          }
+          commit.completeExceptionally(err);
+          continue;
+        }
+      }
+
+      if (isCompacted()) publishCompaction();
+      if (compaction == null && tail.size() >= snapshotEvery) {
+        try {
+          startCompaction();
+        } catch (IOException | RuntimeException err) {
+          log.error("Can't compact the journal, {} records are kept in the tail", tail.size(), err);
+        }
+      }
+    }
+  }
+
+  private void write(List<Record> batch) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    List<byte[]> payloads = new ArrayList<>(batch.size());
+
+    for (Record record : batch) {
+      byte[] payload = record.encode();
+      payloads.add(payload);
+      out.writeInt(payload.length);
+      out.writeInt(checksum(payload));
+      out.write(payload);
+    }
+
+    long start = channel.position();
+    try {
+      ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+      while (buffer.hasRemaining()) channel.write(buffer);
+      if (durability == Durability.SYNC) channel.force(false);
+    } catch (IOException err) {
+      channel.truncate(start);  // don't leave a torn batch in front of the next ones
+      throw err;
+    }
+
+    // records become visible once they are written
+    tail.addAll(batch);
+    for (byte[] payload : payloads) encodedTail.append(payload);
+    listing = newListing();
+    for (Consumer<Record> listener : listeners) batch.forEach(record -> deliver(listener, record));
+  }
+
+  // a failing listener misses the record, the others and the writer don't
+  private static void deliver(Consumer<Record> listener, Record record) {
+    try {
+      listener.accept(record);
+    } catch (RuntimeException err) {
+      log.error("Journal listener {} failed on the record {}", listener, record.id, err);
+    }
+  }
+
+  private boolean isCompacted() {
+    return compaction != null && compaction.isDone();
+  }
+
+  // the journal is renamed to the compacting file and its records are frozen, the writer goes on with a new file
+  // while they are written to a snapshot; if that fails, the same records are tried again by the next compaction
+  private void startCompaction() throws IOException {
+    if (frozen.isEmpty()) {
+      Files.move(path, compactingPath, ATOMIC_MOVE);
+      FileChannel next;
+      try {
+        next = FileChannel.open(path, CREATE, READ, WRITE);
+      } catch (IOException err) {
+        Files.move(compactingPath, path, ATOMIC_MOVE);
+        throw err;
+      }
+
+      FileChannel renamed = channel;
+      channel = next;
+      frozen = tail;
+      encodedFrozen = encodedTail;
+      tail = new ArrayList<>();
+      encodedTail = new EncodedRecords();
+      renamed.close();
+    }
+
+    Snapshot previous = snapshot;
+    List<Record> records = frozen;
+    EncodedRecords encoded = encodedFrozen;
+    compaction = CompletableFuture.supplyAsync(() -> {
+      try {
+        return writeSnapshot(previous, records, encoded);
+      } catch (IOException err) {
+        throw new UncheckedIOException(err);
+      }
+    }, compactor);
+    compaction.whenComplete((written, err) -> {
+      synchronized (this) {
+        notifyAll();  // wakes the writer up to publish it
+      }
+    });
+  }
+
+  // the frozen records are forgotten once the snapshot with them is published;
+  // if the process dies before the compacting file is deleted, its records are skipped on load by their ids
+  private void publishCompaction() {
+    Snapshot written;
+    try {
+      written = compaction.join();
+    } catch (CompletionException err) {
+      log.error("Can't compact the journal, {} records are kept in {}", frozen.size(), compactingPath, err.getCause());
+      return;
+    } finally {
+      compaction = null;
+    }
+
+    List<Record> published = frozen;
+    snapshot = written;
+    frozen = new ArrayList<>();
+    encodedFrozen = new EncodedRecords();  // the old buffer may be still sent by a listing
+    listing = newListing();
+    for (Record record : published) tailRecords.remove(record.id);
+
+    try {
+      Files.delete(compactingPath);
+    } catch (IOException err) {
+      log.warn("Can't delete {}, its records are in the snapshot already", compactingPath, err);
+    }
+  }
+
+  private Snapshot writeSnapshot(Snapshot previous, List<Record> records, EncodedRecords encoded) throws IOException {
+    long start = System.nanoTime();
+    Snapshot written = Snapshot.write(snapshotPath, previous, records, encoded.offsets(), encoded.buffer(), encoded.size());
+    log.info("Journal is compacted into a snapshot of {} records in {} ms",
+        written.count, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    return written;
+  }
+
+  private Listing newListing() {
+    List<ByteBuffer> parts = new ArrayList<>(Arrays.asList(snapshot.records()));
+    parts.add(encodedFrozen.toBuffer());
+    parts.add(encodedTail.toBuffer());
+    return new Listing(snapshot.count + frozen.size() + tail.size(), parts);
+  }
+
+  private static void await(CompletableFuture<Void> commit) throws IOException {
+    try {
+      commit.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the journal");
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+    }
+  }
+
+  // a torn or corrupted tail is left by a crash in the middle of a write, it's cut off
+  private static List<Record> loadRecords(FileChannel channel) throws IOException {
     log.debug("Load journal records");
-    return Files.readAllLines(path).stream().map(Record::deserialize).collect(Collectors.toList());
+    List<Record> records = new ArrayList<>();
+    DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(0))));
+    long validLength = 0;
+
+    try {
+      while (validLength < channel.size()) {
+        int length = in.readInt();
+        int crc = in.readInt();
+        if (length <= 0 || length > MAX_RECORD_SIZE) break;
+
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        if (checksum(payload) != crc) break;
+
+        records.add(Record.decode(payload));
+        validLength += 2 * Integer.BYTES + length;
+      }
+    } catch (EOFException torn) {
+      // the last record was not written completely
+    }
+
+    if (validLength < channel.size()) {
+      log.warn("Journal is corrupted after {} bytes, {} records are kept", validLength, records.size());
+      channel.truncate(validLength);
+    }
+
+    channel.position(validLength);
+    return records;
+  }
+
+  private static int checksum(byte[] payload) {
+    CRC32 crc = new CRC32();
+    crc.update(payload, 0, payload.length);
+    return (int) crc.getValue();
+  }
+
+  /**
+   * Converts the text journal of the previous versions, lines of <tt>id/size/name</tt>.
+   * Nothing is done if there is no text journal or the binary one is already filled,
+   * the text journal is renamed to <tt>*.migrated</tt> afterwards.
+   */
+  public static void migrate(Path textJournal, Path journal) throws IOException {
+    if (!Files.exists(textJournal) || Files.exists(journal) && Files.size(journal) > 0) return;
+
+    List<Record> records = Files.readAllLines(textJournal).stream()
+        .filter(line -> !line.isEmpty())
+        .map(Record::deserialize)
+        .collect(Collectors.toList());
+
+    log.info("Migrate {} records of the text journal {}", records.size(), textJournal);
+    Path converted = Paths.get(journal + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(converted)))) {
+      for (Record record : records) {
+        byte[] payload = record.encode();
+        out.writeInt(payload.length);
+        out.writeInt(checksum(payload));
+        out.write(payload);
+      }
+    }
+
+    try (FileChannel written = FileChannel.open(converted, WRITE)) {
+      written.force(true);
+    }
+    Files.move(converted, journal, ATOMIC_MOVE);
+    Files.move(textJournal, Paths.get(textJournal + ".migrated"));
+  }
+
+
+  /**
+   * <tt><count: Int> (<id: Int> <name: String> <size: Long>)*</tt>, records of the snapshot are copied
+   * from the mapped file in chunks, then the frozen records and the tail are written by bulk writes.
+   * A listing never changes: new records are appended behind its length, or to a new array.
+   */
+  public static class Listing {
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    public final int count;
+    private final List<ByteBuffer> parts;
+
+    Listing(int count, List<ByteBuffer> parts) {
+      this.count = count;
+      this.parts = parts;
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+      out.writeInt(count);
+
+      byte[] chunk = null;
+      for (ByteBuffer part : parts) {
+        ByteBuffer records = part.duplicate();
+        if (records.hasArray()) {
+          out.write(records.array(), records.arrayOffset() + records.position(), records.remaining());
+          continue;
+        }
+
+        if (chunk == null) chunk = new byte[CHUNK_SIZE];
+        while (records.hasRemaining()) {
+          int length = min(chunk.length, records.remaining());
+          records.get(chunk, 0, length);
+          out.write(chunk, 0, length);
+        }
+      }
+    }
+
+    /**
+     * Decodes the records one by one, in the order of ids.
+     */
+    public void forEach(RecordConsumer action) throws IOException {
+      List<InputStream> streams = new ArrayList<>();
+      for (ByteBuffer part : parts) streams.add(new ByteBufferInputStream(part.duplicate()));
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+          new SequenceInputStream(Collections.enumeration(streams))));
+
+      for (int i = 0; i < count; i++) action.accept(Record.read(in));
+    }
+  }
+
+  @FunctionalInterface
+  public interface RecordConsumer {
+    void accept(Record record) throws IOException;
+  }
+
+  private static class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    @Override public int read(byte[] bytes, int offset, int length) {
+      if (!buffer.hasRemaining()) return -1;
+      length = min(length, buffer.remaining());
+      buffer.get(bytes, offset, length);
+      return length;
+    }
+  }
+
+  // a byte array output stream with access to its buffer, which is replaced when grows;
+  // it knows where every record starts, so a snapshot indexes them without encoding them again
+  private static class EncodedRecords extends ByteArrayOutputStream {
+    private int[] offsets = new int[16];
+    private int records;
+
+    void append(Record record) {
+      append(record.encode());
+    }
+
+    void append(byte[] payload) {
+      if (records == offsets.length) offsets = Arrays.copyOf(offsets, 2 * records);
+      offsets[records++] = count;
+      write(payload, 0, payload.length);
+    }
+
+    int[] offsets() {
+      return offsets;
+    }
+
+    byte[] buffer() {
+      return buf;
+    }
+
+    ByteBuffer toBuffer() {
+      return ByteBuffer.wrap(buf, 0, count);
+    }
   }
 
 
@@ -69,17 +614,33 @@ public class Journal {
       this.name = name;
     }
 
-    static Record deserialize(String raw) {
-      String[] values = raw.split("/", 3);
-      return new Record(parseUnsignedInt(values[0]), parseUnsignedLong(values[1]), values[2]);
+    // <id: Int> <name: String> <size: Long>, as in the list route
+    byte[] encode() {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (DataOutputStream out = new DataOutputStream(bytes)) {
+        out.writeInt(id);
+        out.writeUTF(name);
+        out.writeLong(size);
+      } catch (IOException err) {
+        throw new UncheckedIOException(err);  // never happens in memory
+      }
+      return bytes.toByteArray();
+    }
+
+    static Record decode(byte[] payload) throws IOException {
+      return read(new DataInputStream(new ByteArrayInputStream(payload)));
     }
 
-    static String serialize(int id, long size, String name) {
-      return String.format("%d/%d/%s", id, size, name);
+    static Record read(DataInput in) throws IOException {
+      int id = in.readInt();
+      String name = in.readUTF();
+      return new Record(id, in.readLong(), name);
     }
 
-    String serialize() {
-      return serialize(id, size, name);
+    // the text format of the previous versions
+    static Record deserialize(String raw) {
+      String[] values = raw.split("/", 3);
+      return new Record(parseUnsignedInt(values[0]), parseUnsignedLong(values[1]), values[2]);
     }
   }
 }
@@ -0,0 +1,61 @@
+package tracker;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts latencies in microseconds by log-linear buckets: values below 16 us are exact, every doubling above
+ * is split into 8 buckets, so a percentile is within 12.5% of the truth whatever the range.
+ * Recording is a shift and an increment of a striped adder, a percentile sums up the buckets.
+ */
+class LatencyHistogram {
+  private static final int EXACT = 16;
+  private static final int SUB_BITS = 3;  // 8 buckets per doubling
+  private static final int MAX_EXPONENT = 40;  // up to 2^40 us, longer ones fall into the last bucket
+  private static final int BUCKETS = EXACT + ((MAX_EXPONENT - Integer.numberOfTrailingZeros(EXACT)) << SUB_BITS);
+
+  private final LongAdder[] counts = new LongAdder[BUCKETS];
+
+
+  LatencyHistogram() {
+    for (int i = 0; i < BUCKETS; i++) counts[i] = new LongAdder();
+  }
+
+  void record(long nanos) {
+    counts[bucketOf(Math.max(0, nanos / 1000))].increment();
+  }
+
+  /**
+   * The upper bound of the bucket where the <tt>quantile</tt> (0.5, 0.99, ...) falls, 0 if nothing is recorded.
+   */
+  long percentileMicros(double quantile) {
+    long[] snapshot = new long[BUCKETS];
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) total += snapshot[i] = counts[i].sum();
+    if (total == 0) return 0;
+
+    long rank = (long) Math.ceil(quantile * total);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) return upperBoundOf(i);
+    }
+    return upperBoundOf(BUCKETS - 1);
+  }
+
+  private static int bucketOf(long micros) {
+    if (micros < EXACT) return (int) micros;
+
+    int exponent = 63 - Long.numberOfLeadingZeros(micros);
+    if (exponent >= MAX_EXPONENT) return BUCKETS - 1;
+    int sub = (int) (micros >>> (exponent - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+    return EXACT + ((exponent - Integer.numberOfTrailingZeros(EXACT)) << SUB_BITS) + sub;
+  }
+
+  private static long upperBoundOf(int bucket) {
+    if (bucket < EXACT) return bucket;
+
+    int exponent = ((bucket - EXACT) >> SUB_BITS) + Integer.numberOfTrailingZeros(EXACT);
+    int sub = (bucket - EXACT) & ((1 << SUB_BITS) - 1);
+    return (1L << exponent) + ((sub + 1L) << (exponent - SUB_BITS)) - 1;
+  }
+}
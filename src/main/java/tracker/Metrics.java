@@ -0,0 +1,122 @@
+package tracker;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static tracker.Server.log;
+
+/**
+ * Gauges of the tracker, read when they are asked for, so nothing is paid for them on requests.
+ * They and the counters of routes (see {@link InstrumentedRoute}) are published over JMX and by the metrics route.
+ */
+public class Metrics implements MetricsMBean {
+  private final Journal journal;
+  private final ActiveSeeds activeSeeds;
+  private final Admission admission;
+  private final Replica replica;  // null on the leader
+
+
+  Metrics(Journal journal, ActiveSeeds activeSeeds, Admission admission, Replica replica) {
+    this.journal = journal;
+    this.activeSeeds = activeSeeds;
+    this.admission = admission;
+    this.replica = replica;
+  }
+
+  /**
+   * Registers the gauges and the routes in the platform MBean server, a failure is not fatal.
+   */
+  void register(Collection<InstrumentedRoute> routes) {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      server.registerMBean(this, new ObjectName("tracker:type=Tracker"));
+      for (InstrumentedRoute route : routes) {
+        server.registerMBean(route, new ObjectName("tracker:type=Route,name=" + route.name));
+      }
+    } catch (JMException err) {
+      log.warn("Can't register metrics over JMX", err);
+    }
+  }
+
+  /**
+   * <tt><numOfGauges: Int> (<name: String> <value: Long>)*
+   * <numOfRoutes: Int> (<name: String> <calls: Long> <failures: Long> <meanMicros: Long>
+   * <p50Micros: Long> <p99Micros: Long> <p999Micros: Long>)*</tt>
+   */
+  void writeTo(DataOutputStream out, Collection<InstrumentedRoute> routes) throws IOException {
+    Map<String, Long> gauges = gauges();
+    out.writeInt(gauges.size());
+    for (Map.Entry<String, Long> gauge : gauges.entrySet()) {
+      out.writeUTF(gauge.getKey());
+      out.writeLong(gauge.getValue());
+    }
+
+    out.writeInt(routes.size());
+    for (InstrumentedRoute route : routes) {
+      out.writeUTF(route.name);
+      out.writeLong(route.getCalls());
+      out.writeLong(route.getFailures());
+      out.writeLong(route.getMeanMicros());
+      out.writeLong(route.getP50Micros());
+      out.writeLong(route.getP99Micros());
+      out.writeLong(route.getP999Micros());
+    }
+  }
+
+  private Map<String, Long> gauges() {
+    Map<String, Long> gauges = new LinkedHashMap<>();
+    gauges.put("connections", (long) getConnections());
+    gauges.put("swarms", (long) getSwarms());
+    gauges.put("swarmPeers", getSwarmPeers());
+    gauges.put("largestSwarm", (long) getLargestSwarm());
+    gauges.put("seeds", (long) getSeeds());
+    gauges.put("journalSize", (long) getJournalSize());
+    gauges.put("expiredSeedsLastMinute", (long) getExpiredSeedsLastMinute());
+    gauges.put("replicationLagRecords", (long) getReplicationLagRecords());
+    gauges.put("replicationLagMillis", getReplicationLagMillis());
+    return gauges;
+  }
+
+  @Override public int getConnections() {
+    return admission.numOfConnections();
+  }
+
+  @Override public int getSwarms() {
+    return activeSeeds.numOfSwarms();
+  }
+
+  @Override public long getSwarmPeers() {
+    return activeSeeds.numOfSwarmPeers();
+  }
+
+  @Override public int getLargestSwarm() {
+    return activeSeeds.largestSwarm();
+  }
+
+  @Override public int getSeeds() {
+    return activeSeeds.numOfSeeds();
+  }
+
+  @Override public int getJournalSize() {
+    return journal.size();
+  }
+
+  @Override public int getExpiredSeedsLastMinute() {
+    return activeSeeds.expiredLastMinute();
+  }
+
+  @Override public int getReplicationLagRecords() {
+    return replica == null ? 0 : replica.lagRecords();
+  }
+
+  @Override public long getReplicationLagMillis() {
+    return replica == null ? 0 : replica.lagMillis();
+  }
+}
@@ -0,0 +1,24 @@
+package tracker;
+
+/**
+ * Gauges of the tracker over JMX, as <tt>tracker:type=Tracker</tt>.
+ */
+public interface MetricsMBean {
+  int getConnections();
+
+  int getSwarms();
+
+  long getSwarmPeers();
+
+  int getLargestSwarm();
+
+  int getSeeds();
+
+  int getJournalSize();
+
+  int getExpiredSeedsLastMinute();
+
+  int getReplicationLagRecords();
+
+  long getReplicationLagMillis();
+}
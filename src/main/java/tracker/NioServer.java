@@ -0,0 +1,406 @@
+package tracker;
+
+import common.TaskExecutors;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.concurrent.Executors.newCachedThreadPool;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static tracker.Server.log;
+
+/**
+ * Same protocol as {@link Server}, but connections are multiplexed by a fixed number of selector threads,
+ * so the number of threads doesn't depend on the number of clients.
+ * <p>
+ * Routes which only touch memory are run inline by the selector thread. The ones which {@link Controller#mayBlock}
+ * are run by the <tt>workers</tt>, and the selector thread writes their responses. A connection has at most one
+ * request on a worker, the requests behind it wait in the buffer, so responses keep the order of requests.
+ */
+public class NioServer implements Closeable {
+  private static final int INITIAL_BUFFER_SIZE = 256;
+  private static final int MAX_REQUEST_SIZE = Controller.MAX_FRAME_SIZE;
+  private static final int SWEEP_MILLIS = 1000;  // how often timeouts are checked
+
+  private final Controller controller;
+  private final ServerSocketChannel socket;
+  private final EventLoop[] loops;
+  private final ExecutorService pool;
+  private final ExecutorService workers;
+  private final Admission admission;
+  private int nextLoop;
+  private volatile boolean isDraining;
+
+
+  public NioServer(Controller controller, int port, int nThreads) throws IOException {
+    this(controller, port, nThreads, newCachedThreadPool(), Admission.unlimited());
+  }
+
+  /**
+   * Routes which may block are run by the <tt>workers</tt>, see {@link TaskExecutors#newExecutor}.
+   */
+  NioServer(Controller controller, int port, int nThreads, ExecutorService workers, Admission admission)
+      throws IOException {
+    this.controller = controller;
+    this.workers = workers;
+    this.admission = admission;
+    this.socket = ServerSocketChannel.open().bind(new InetSocketAddress(port));
+    this.loops = new EventLoop[nThreads];
+    this.pool = newFixedThreadPool(nThreads);
+
+    for (int i = 0; i < nThreads; i++) {
+      loops[i] = new EventLoop();
+      pool.submit(loops[i]);
+    }
+  }
+
+  int getPort() {
+    return socket.socket().getLocalPort();
+  }
+
+  /**
+   * Stops accepting and reading, connections write the responses they have and are closed.
+   * A second call waits for the first one.
+   */
+  @Override public synchronized void close() throws IOException {
+    if (isDraining) return;
+    isDraining = true;
+    log.info("Server shutdown");
+    controller.routeStats().forEach(route -> log.info("{}", route));
+    try {
+      socket.close();
+      for (EventLoop loop : loops) loop.selector.wakeup();
+      pool.shutdown();
+      if (!pool.awaitTermination(Server.DRAIN_MILLIS, TimeUnit.MILLISECONDS)) {
+        log.warn("Connections are not drained in {} ms", Server.DRAIN_MILLIS);
+      }
+    } catch (InterruptedException err) {
+      Thread.currentThread().interrupt();
+    } finally {
+      for (EventLoop loop : loops) loop.selector.close();
+      pool.shutdownNow();
+      workers.shutdownNow();
+    }
+  }
+
+  public void listen() {
+    log.info("Start listening clients on {} with {} selectors", socket.socket().getLocalSocketAddress(), loops.length);
+
+    while (socket.isOpen() && !Thread.interrupted()) {
+      try {
+        SocketChannel client = socket.accept();
+        if (!admission.tryAdmit()) {
+          admission.reject(client.socket());
+          continue;
+        }
+
+        client.configureBlocking(false);
+        loops[Math.floorMod(nextLoop++, loops.length)].register(client);  // the counter wraps around after 2^31
+      } catch (ClosedChannelException err) {
+        break;
+      } catch (IOException err) {
+        log.error("Error while accepting socket", err);
+      }
+    }
+  }
+
+
+  private class EventLoop implements Runnable {
+    private final Selector selector = Selector.open();
+    private final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+    private final Queue<Runnable> completed = new ConcurrentLinkedQueue<>();  // responses of the workers
+    private long lastSweep = System.currentTimeMillis();
+
+    EventLoop() throws IOException {}
+
+    void register(SocketChannel client) {
+      accepted.add(client);
+      selector.wakeup();
+    }
+
+    // called by a worker, the response is written by the loop
+    void complete(Runnable onCompleted) {
+      completed.add(onCompleted);
+      selector.wakeup();
+    }
+
+    @Override public void run() {
+      while (selector.isOpen() && !Thread.interrupted()) {
+        try {
+          selector.select(SWEEP_MILLIS);
+          registerAccepted();
+          for (Runnable onCompleted; (onCompleted = completed.poll()) != null; ) onCompleted.run();
+
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            ((Connection) key.attachment()).onReady(key);
+          }
+          sweep();
+          if (isDraining && drain()) break;
+        } catch (ClosedSelectorException err) {
+          break;
+        } catch (IOException | RuntimeException err) {
+          log.error("Selector failure", err);
+        }
+      }
+    }
+
+    private void registerAccepted() {
+      SocketChannel client;
+      while ((client = accepted.poll()) != null) {
+        try {
+          Connection connection = new Connection(client, this);
+          connection.key = client.register(selector, SelectionKey.OP_READ, connection);
+        } catch (IOException err) {
+          log.error("Error while registering client {}", client, err);
+          admission.release();
+        }
+      }
+    }
+
+    // every connection answers what it has read and is closed once that is written; true when none is left
+    private boolean drain() {
+      boolean isDrained = true;
+      for (SelectionKey key : selector.keys()) {
+        if (!key.isValid()) continue;
+        ((Connection) key.attachment()).closeWhenWritten(key);
+        isDrained &= !key.isValid();
+      }
+      return isDrained;
+    }
+
+    // closes the connections which are silent for longer than the timeouts let
+    private void sweep() {
+      long now = System.currentTimeMillis();
+      if (now - lastSweep < SWEEP_MILLIS) return;
+      lastSweep = now;
+
+      for (SelectionKey key : selector.keys()) {
+        if (key.isValid()) ((Connection) key.attachment()).closeIfStale(now);
+      }
+    }
+  }
+
+
+  /**
+   * Buffers a request until the route is able to read it completely, then writes the response and closes.
+   * A keep-alive connection is read frame by frame instead, and stays open until the client hangs up.
+   */
+  private class Connection {
+    private final SocketChannel channel;
+    private final InetAddress clientIp;
+    private final EventLoop loop;
+    private SelectionKey key;
+    private ByteBuffer request = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private ByteBuffer response;  // pending responses, null when everything is written
+    private boolean keepAlive;
+    private boolean isBusy;  // a request is run by a worker, nothing is read meanwhile
+    private boolean closeWhenWritten;
+    private long lastActivity = System.currentTimeMillis();
+    private boolean isClosed;
+
+    Connection(SocketChannel channel, EventLoop loop) {
+      this.channel = channel;
+      this.clientIp = channel.socket().getInetAddress();
+      this.loop = loop;
+      log.debug("Connected        {}", clientIp);
+    }
+
+    void onReady(SelectionKey key) {
+      try {
+        if (key.isReadable() && !isBusy) onRead();
+        if (channel.isOpen()) flush(key);
+      } catch (IOException | RuntimeException err) {  // a failing route closes its connection, not the loop
+        log.error("Error while handling client {}", clientIp, err);
+        close();
+      }
+    }
+
+    private void onRead() throws IOException {
+      if (!request.hasRemaining()) grow();
+      int read = channel.read(request);
+      if (read < 0) {
+        closeWhenWritten = true;
+        return;
+      }
+      if (read > 0) lastActivity = System.currentTimeMillis();
+      respond();
+    }
+
+    // answers the buffered requests, until one of them goes to a worker
+    private void respond() throws IOException {
+      request.flip();
+      if (!keepAlive && request.hasRemaining() && request.get(0) == Controller.KEEP_ALIVE) {
+        keepAlive = true;
+        request.get();
+      }
+
+      if (keepAlive) respondFrames(); else respondOnce();
+      request.compact();
+    }
+
+    private void respondOnce() throws IOException {
+      if (request.hasRemaining() && controller.mayBlock(request.get(request.position()))) {
+        dispatch(request, false);  // the bytes stay buffered until the worker finds the request complete
+        return;
+      }
+
+      try {
+        enqueue(controller.respond(clientIp, request, true), false);
+      } catch (EOFException notYet) {
+        return;
+      }
+
+      request.position(request.limit());
+      closeWhenWritten = true;
+    }
+
+    private void respondFrames() throws IOException {
+      while (!isBusy && request.remaining() >= Integer.BYTES) {
+        int start = request.position();
+        int length = request.getInt(start);
+        if (length <= 0 || length > Controller.MAX_FRAME_SIZE) throw new IOException("Bad frame length " + length);
+        if (request.remaining() < Integer.BYTES + length) return;
+
+        ByteBuffer frame = request.duplicate();
+        frame.limit(start + Integer.BYTES + length);
+        frame.position(start + Integer.BYTES);
+
+        if (controller.mayBlock(frame.get(frame.position()))) dispatch(frame, true);
+        else enqueue(controller.respond(clientIp, frame), true);
+        request.position(start + Integer.BYTES + length);
+      }
+    }
+
+    // the worker gets a copy, the buffer is compacted and filled meanwhile
+    private void dispatch(ByteBuffer bytes, boolean framed) {
+      ByteBuffer copy = ByteBuffer.allocate(bytes.remaining());
+      copy.put(bytes.duplicate()).flip();
+      isBusy = true;
+
+      workers.execute(() -> {
+        try {
+          ByteBuffer reply = controller.respond(clientIp, copy, !framed);
+          loop.complete(() -> onCompleted(reply, null, framed));
+        } catch (IOException | RuntimeException err) {
+          loop.complete(() -> onCompleted(null, err, framed));
+        }
+      });
+    }
+
+    // on the selector thread, once the worker is done
+    private void onCompleted(ByteBuffer reply, Exception failure, boolean framed) {
+      isBusy = false;
+      if (isClosed) return;
+      lastActivity = System.currentTimeMillis();
+
+      try {
+        if (failure instanceof EOFException && !framed) {
+          // not received completely yet, reading goes on
+        } else if (failure instanceof IOException) {
+          throw (IOException) failure;
+        } else if (failure != null) {
+          throw (RuntimeException) failure;
+        } else if (framed) {
+          enqueue(reply, true);
+          respond();  // the frames buffered behind it
+        } else {
+          enqueue(reply, false);
+          request.clear();
+          closeWhenWritten = true;
+        }
+        flush(key);
+      } catch (IOException | RuntimeException err) {
+        log.error("Error while handling client {}", clientIp, err);
+        close();
+      }
+    }
+
+    private void enqueue(ByteBuffer bytes, boolean framed) {
+      int size = bytes.remaining() + (framed ? Integer.BYTES : 0);
+
+      if (response == null) {
+        response = ByteBuffer.allocate(Math.max(size, INITIAL_BUFFER_SIZE));
+      } else if (response.remaining() < size) {
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(response.position() + size, 2 * response.capacity()));
+        response.flip();
+        response = larger.put(response);
+      }
+
+      if (framed) response.putInt(bytes.remaining());
+      response.put(bytes);
+    }
+
+    // write as much as the socket takes, and wait for reads only while there is no backlog of responses
+    private void flush(SelectionKey key) throws IOException {
+      if (response != null) {
+        response.flip();
+        if (channel.write(response) > 0) lastActivity = System.currentTimeMillis();
+        response.compact();
+        if (response.position() == 0) response = null;
+      }
+
+      if (response == null && closeWhenWritten && !isBusy) {
+        log.debug("Ok               {}", clientIp);
+        close();
+        return;
+      }
+
+      boolean readMore = !closeWhenWritten && !isBusy && (response == null || response.position() < MAX_REQUEST_SIZE);
+      key.interestOps((readMore ? SelectionKey.OP_READ : 0) | (response != null ? SelectionKey.OP_WRITE : 0));
+    }
+
+    private void grow() throws IOException {
+      if (request.capacity() >= MAX_REQUEST_SIZE + Integer.BYTES) throw new IOException("Request is too large");
+
+      ByteBuffer larger = ByteBuffer.allocate(request.capacity() * 2);
+      request.flip();
+      request = larger.put(request);
+    }
+
+    void closeWhenWritten(SelectionKey key) {
+      closeWhenWritten = true;
+      try {
+        flush(key);
+      } catch (IOException err) {
+        log.error("Error while handling client {}", clientIp, err);
+        close();
+      }
+    }
+
+    // a keep-alive connection between requests is idle, otherwise a request or a response is stalled;
+    // a request on a worker is waited for
+    void closeIfStale(long now) {
+      if (isBusy) return;
+      boolean isIdle = keepAlive && request.position() == 0 && response == null;
+      if (admission.isTimedOut(now - lastActivity, isIdle)) {
+        log.debug("Timed out        {}", clientIp);
+        close();
+      }
+    }
+
+    private void close() {
+      if (isClosed) return;
+      isClosed = true;
+      admission.release();
+
+      try {
+        channel.close();
+      } catch (IOException err) {
+        log.error("Error while closing client {}", clientIp, err);
+      }
+    }
+  }
+}
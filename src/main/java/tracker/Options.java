@@ -0,0 +1,36 @@
+package tracker;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Command line options of the tracker, written as <tt>--key=value</tt> or just <tt>--flag</tt>.
+ */
+class Options {
+  private final Map<String, String> values = new HashMap<>();
+
+  static Options parse(String... args) {
+    Options options = new Options();
+
+    for (String arg : args) {
+      if (!arg.startsWith("--")) throw new IllegalArgumentException("Unknown argument: " + arg);
+      String[] pair = arg.substring(2).split("=", 2);
+      options.values.put(pair[0], pair.length == 2 ? pair[1] : "");
+    }
+
+    return options;
+  }
+
+  boolean has(String flag) {
+    return values.containsKey(flag);
+  }
+
+  String get(String key, String defaultValue) {
+    return values.getOrDefault(key, defaultValue);
+  }
+
+  int getInt(String key, int defaultValue) {
+    String value = values.get(key);
+    return value == null ? defaultValue : Integer.parseInt(value);
+  }
+}
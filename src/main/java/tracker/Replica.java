@@ -0,0 +1,103 @@
+package tracker;
+
+import java.io.*;
+import java.net.Socket;
+
+import static tracker.Server.log;
+
+/**
+ * Follows the journal of the leader (see {@link ReplicationServer}), records are appended to the local journal
+ * as they come, so the catalog routes of a follower answer the same as the leader does.
+ * The leader is reconnected once a second while it's lost, the follower goes on from its last record.
+ */
+class Replica implements Closeable {
+  private static final int RECONNECT_MILLIS = 1000;
+
+  private final Journal journal;
+  private final String host;
+  private final int port;
+  private final Thread follower = new Thread(this::follow, "replica");
+  private volatile Socket socket;
+  private volatile boolean isClosed;
+  private volatile boolean isConnected;
+  private volatile int leaderRecords;
+  private volatile long lagMillis;
+
+
+  /**
+   * <tt>leader</tt> is <tt>host:port</tt> of the replication port of the leader.
+   */
+  Replica(Journal journal, String leader) {
+    int colon = leader.lastIndexOf(':');
+    if (colon < 0) throw new IllegalArgumentException("Expected host:port, got " + leader);
+
+    this.journal = journal;
+    this.host = leader.substring(0, colon);
+    this.port = Integer.parseInt(leader.substring(colon + 1));
+    follower.setDaemon(true);
+    follower.start();
+  }
+
+  @Override public void close() throws IOException {
+    isClosed = true;
+    follower.interrupt();
+    Socket connection = socket;
+    if (connection != null) connection.close();
+  }
+
+  boolean isConnected() {
+    return isConnected;
+  }
+
+  /**
+   * Records the leader had on the last heartbeat, which the follower doesn't have yet.
+   */
+  int lagRecords() {
+    return Math.max(0, leaderRecords - journal.size());
+  }
+
+  /**
+   * How late the last heartbeat came, it's queued behind the records sent before it.
+   */
+  long lagMillis() {
+    return lagMillis;
+  }
+
+
+  private void follow() {
+    while (!isClosed) {
+      try (Socket connection = new Socket(host, port)) {
+        socket = connection;
+        DataOutputStream out = new DataOutputStream(connection.getOutputStream());
+        DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+
+        out.writeInt(journal.lastId());
+        out.flush();
+        isConnected = true;
+        log.info("Follow the leader {}:{} after id {}", host, port, journal.lastId());
+
+        while (true) {
+          byte type = in.readByte();
+          if (type == ReplicationServer.RECORD) {
+            journal.replicate(Journal.Record.read(in));
+          } else if (type == ReplicationServer.HEARTBEAT) {
+            leaderRecords = in.readInt();
+            lagMillis = Math.max(0, System.currentTimeMillis() - in.readLong());
+          } else {
+            throw new IOException("Unknown replication frame " + type);
+          }
+        }
+      } catch (IOException err) {
+        if (!isClosed) log.warn("Lost the leader {}:{}: {}", host, port, err.toString());
+      } finally {
+        isConnected = false;
+      }
+
+      try {
+        Thread.sleep(RECONNECT_MILLIS);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+}
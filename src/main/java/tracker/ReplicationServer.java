@@ -0,0 +1,114 @@
+package tracker;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import static java.util.concurrent.Executors.newCachedThreadPool;
+import static tracker.Server.log;
+
+/**
+ * Streams the journal of the leader to followers. A follower sends <tt><lastId: Int></tt>, the last record it has,
+ * and gets the newer records of the listing, then the records as they are written: <tt>(<type: Byte> <frame>)*</tt>,
+ * <ul>
+ *   <li><tt>1</tt> — a record, <tt><id: Int> <name: String> <size: Long></tt>,</li>
+ *   <li><tt>2</tt> — a heartbeat once a second, <tt><records: Int> <millis: Long></tt>,
+ *   the number of records on the leader and its clock, so a follower knows how far it's behind.</li>
+ * </ul>
+ * A follower which falls behind by too many records is disconnected, it catches up from the listing once reconnects.
+ */
+class ReplicationServer implements Closeable {
+  static final byte RECORD = 1;
+  static final byte HEARTBEAT = 2;
+  static final int HEARTBEAT_MILLIS = 1000;
+  private static final int MAX_BACKLOG = 100_000;
+
+  private final Journal journal;
+  private final ServerSocket socket;
+  private final ExecutorService pool = newCachedThreadPool();
+
+
+  ReplicationServer(Journal journal, int port) throws IOException {
+    this.journal = journal;
+    this.socket = new ServerSocket(port);
+
+    Thread acceptor = new Thread(this::accept, "replication");
+    acceptor.setDaemon(true);
+    acceptor.start();
+    log.info("Replicate the journal at port {}", port);
+  }
+
+  @Override public void close() throws IOException {
+    socket.close();
+    pool.shutdownNow();
+  }
+
+
+  private void accept() {
+    while (!socket.isClosed()) {
+      try {
+        Socket follower = socket.accept();
+        pool.submit(() -> stream(follower));
+      } catch (IOException err) {
+        if (!socket.isClosed()) log.error("Can't accept a follower", err);
+      }
+    }
+  }
+
+  // new records are queued before the listing is sent, ids tell which ones it has already
+  private void stream(Socket follower) {
+    BlockingQueue<Journal.Record> backlog = new ArrayBlockingQueue<>(MAX_BACKLOG);
+    AtomicBoolean isOverflown = new AtomicBoolean();
+    Consumer<Journal.Record> listener = record -> {
+      if (!backlog.offer(record)) isOverflown.set(true);
+    };
+    journal.subscribe(listener);
+
+    try (Socket connection = follower;
+         DataInputStream in = new DataInputStream(connection.getInputStream());
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()))) {
+      int[] lastSent = {in.readInt()};
+      log.info("Follower {} replicates records after id {}", connection.getRemoteSocketAddress(), lastSent[0]);
+
+      journal.getListing().forEach(record -> {
+        if (record.id > lastSent[0]) writeRecord(out, record);
+        lastSent[0] = Math.max(lastSent[0], record.id);
+      });
+
+      long lastHeartbeat = 0;
+      while (!isOverflown.get()) {
+        Journal.Record record = backlog.poll(HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+        if (record != null && record.id > lastSent[0]) {
+          writeRecord(out, record);
+          lastSent[0] = record.id;
+        }
+
+        long now = System.currentTimeMillis();
+        if (now - lastHeartbeat >= HEARTBEAT_MILLIS) {
+          out.writeByte(HEARTBEAT);
+          out.writeInt(journal.getListing().count);
+          out.writeLong(now);
+          lastHeartbeat = now;
+        }
+        if (backlog.isEmpty()) out.flush();
+      }
+
+      log.warn("Follower {} is behind by {} records, disconnect it", connection.getRemoteSocketAddress(), MAX_BACKLOG);
+    } catch (IOException | InterruptedException err) {
+      log.info("Follower {} is disconnected: {}", follower.getRemoteSocketAddress(), err.toString());
+    } finally {
+      journal.unsubscribe(listener);
+    }
+  }
+
+  private static void writeRecord(DataOutputStream out, Journal.Record record) throws IOException {
+    out.writeByte(RECORD);
+    out.write(record.encode());
+  }
+}
@@ -9,4 +9,9 @@ import java.lang.annotation.Target;
 @Retention(RetentionPolicy.RUNTIME)
 public @interface RouteId {
   byte value();
+
+  /**
+   * The route may wait for the disk or other threads, so {@link NioServer} runs it off its selector threads.
+   */
+  boolean mayBlock() default false;
 }
@@ -2,26 +2,38 @@ package tracker;
 
 import org.jetbrains.annotations.NotNull;
 
+import java.net.Inet4Address;
 import java.net.InetAddress;
-import java.time.Instant;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.Objects;
 
-import static tracker.Server.log;
-
 public class Seed {
   final InetAddress ip;
   final short port;
-  private long lastActive;  // unixtime
 
   public Seed(@NotNull InetAddress ip, short port) {
     this.ip = ip;
     this.port = port;
-    this.lastActive = now();
   }
 
-  public boolean wasActiveLast(int numOfMinutes) {
-    final int secondsPerMinute = 60;
-    return (now() - lastActive) / secondsPerMinute < numOfMinutes;
+  /**
+   * IPv4 address and port in the lower 48 bits, the 49th bit is set, so a packed seed is never 0.
+   * Returns 0 if the address is not an IPv4 one.
+   */
+  public long pack() {
+    if (!(ip instanceof Inet4Address)) return 0;
+    long address = ByteBuffer.wrap(ip.getAddress()).getInt() & 0xFFFFFFFFL;
+    return 1L << 48 | address << 16 | port & 0xFFFF;
+  }
+
+  public static Seed unpack(long packed) {
+    try {
+      byte[] address = ByteBuffer.allocate(Integer.BYTES).putInt((int) (packed >>> 16)).array();
+      return new Seed(InetAddress.getByAddress(address), (short) packed);
+    } catch (UnknownHostException err) {
+      throw new IllegalArgumentException(err);  // never happens for 4 bytes
+    }
   }
 
   @Override public boolean equals(Object o) {
@@ -35,8 +47,4 @@ public class Seed {
   @Override public int hashCode() {
     return Objects.hash(ip, port);
   }
-
-  private static long now() {
-    return Instant.now().getEpochSecond();
-  }
 }
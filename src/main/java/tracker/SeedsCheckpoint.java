@@ -0,0 +1,112 @@
+package tracker;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static tracker.Server.log;
+
+/**
+ * Seeds of {@link ActiveSeeds} are written to a file every <tt>everySeconds</tt> and on close, and the fresh ones
+ * are loaded back on start, so swarms of a restarted tracker are not empty until every client announces again:
+ * <pre>
+ *   <magic: Int> <seeds> <crc: Int>   seeds are encoded by {@link ActiveSeeds#writeTo}, crc is of everything before it
+ * </pre>
+ * The file is replaced atomically, a damaged one is ignored.
+ */
+class SeedsCheckpoint implements Closeable {
+  private static final int MAGIC = 0x54524B50;  // TRKP
+
+  private final ActiveSeeds activeSeeds;
+  private final Path path;
+  private final ScheduledExecutorService writer = newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "seeds-checkpoint");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+
+  /**
+   * Restores seeds of the file, if there is one; <tt>everySeconds</tt> of 0 writes it on close only.
+   */
+  SeedsCheckpoint(ActiveSeeds activeSeeds, Path path, int everySeconds) {
+    this.activeSeeds = activeSeeds;
+    this.path = path;
+
+    restore();
+    if (everySeconds > 0) {
+      writer.scheduleWithFixedDelay(this::writeQuietly, everySeconds, everySeconds, TimeUnit.SECONDS);
+    }
+  }
+
+  @Override public void close() throws IOException {
+    writer.shutdown();
+    try {
+      writer.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException err) {
+      Thread.currentThread().interrupt();
+    }
+    write();
+  }
+
+  void write() throws IOException {
+    long start = System.nanoTime();
+    Path written = Paths.get(path + ".tmp");
+    CRC32 crc = new CRC32();
+    int numOfSeeds;
+
+    try (FileOutputStream file = new FileOutputStream(written.toFile())) {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(file, crc)));
+      out.writeInt(MAGIC);
+      numOfSeeds = activeSeeds.writeTo(out);
+      out.flush();
+
+      file.write(ByteBuffer.allocate(Integer.BYTES).putInt((int) crc.getValue()).array());
+      file.getChannel().force(true);
+    }
+
+    Files.move(written, path, ATOMIC_MOVE, REPLACE_EXISTING);
+    log.info("Checkpoint of {} seeds is written in {} ms", numOfSeeds, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+  }
+
+
+  // an exception escaping a scheduled run would cancel all the next ones
+  private void writeQuietly() {
+    try {
+      write();
+    } catch (IOException | RuntimeException err) {
+      log.error("Can't write checkpoint of seeds {}", path, err);
+    }
+  }
+
+  private void restore() {
+    if (!Files.exists(path)) return;
+
+    try {
+      byte[] bytes = Files.readAllBytes(path);
+      int length = bytes.length - Integer.BYTES;
+      CRC32 crc = new CRC32();
+      crc.update(bytes, 0, Math.max(0, length));
+
+      ByteBuffer buffer = ByteBuffer.wrap(bytes);
+      if (length < Integer.BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(length) != (int) crc.getValue()) {
+        throw new IOException("Damaged checkpoint of seeds " + path);
+      }
+
+      int restored = activeSeeds.readFrom(new DataInputStream(
+          new ByteArrayInputStream(bytes, Integer.BYTES, length - Integer.BYTES)));
+      log.info("{} seeds are restored from {}", restored, path);
+    } catch (IOException err) {
+      log.warn("Seeds are not restored, swarms are filled by announces", err);
+    }
+  }
+}
@@ -1,53 +1,102 @@
 package tracker;
 
+import common.TaskExecutors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.Closeable;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
+import java.io.*;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import static java.util.concurrent.Executors.newCachedThreadPool;
 
 
 public class Server implements Closeable {
   private static final int PORT = 8081;
-  private static final Path JOURNAL_PATH = Paths.get("journal.txt");
+  private static final Path JOURNAL_PATH = Paths.get("journal.bin");
+  private static final Path TEXT_JOURNAL_PATH = Paths.get("journal.txt");
+  private static final Path SEEDS_PATH = Paths.get("seeds.bin");
+  static final int DRAIN_MILLIS = 5_000;  // how long requests in flight are waited for on close
+  private static final int SHUTDOWN_MILLIS = 60_000;
+  private static final int BACKLOG = 1024;  // a burst of connects is not dropped while threads are started
 
-  private final ExecutorService pool = newCachedThreadPool();
+  private final ExecutorService pool;
   private final Controller controller;
   private final ServerSocket socket;
+  private final Admission admission;
+  private final Set<Socket> clients = ConcurrentHashMap.newKeySet();
+  private volatile boolean isDraining;
 
 
   public Server(Controller controller, int port) throws IOException {
-    this.socket = new ServerSocket(port);
+    this(controller, port, newCachedThreadPool());
+  }
+
+  /**
+   * Every connection is served by a task of the <tt>pool</tt>, see {@link TaskExecutors#newExecutor}.
+   */
+  public Server(Controller controller, int port, ExecutorService pool) throws IOException {
+    this(controller, port, pool, Admission.unlimited());
+  }
+
+  Server(Controller controller, int port, ExecutorService pool, Admission admission) throws IOException {
+    this.socket = new ServerSocket(port, BACKLOG);
     this.controller = controller;
+    this.pool = pool;
+    this.admission = admission;
   }
 
-  @Override public void close() throws IOException {
+  int getPort() {
+    return socket.getLocalPort();
+  }
+
+  /**
+   * Stops accepting and waits for connections to answer the requests they have read, then they are closed.
+   * A second call waits for the first one.
+   */
+  @Override public synchronized void close() throws IOException {
+    if (isDraining) return;
+    isDraining = true;
     log.info("Server shutdown");
+    controller.routeStats().forEach(route -> log.info("{}", route));
     try {
       socket.close();
     } finally {
-      pool.shutdown();
+      drain();
     }
   }
 
-  private void listen() {
+  void listen() {
     log.info("Start listening clients on {}:{}", socket.getInetAddress(), socket.getLocalPort());
 
-    while (!Thread.interrupted()) {
+    while (!socket.isClosed()) {
       try {
-        pool.submit(handle(socket.accept()));
+        Socket client = socket.accept();
+        if (!admission.tryAdmit()) {
+          admission.reject(client);
+          continue;
+        }
+
+        try {
+          pool.submit(handle(client));
+        } catch (RejectedExecutionException shutdown) {
+          admission.release();
+          client.close();
+        }
       } catch (IOException err) {
-        log.error("Error while accepting socket", err);
+        if (!socket.isClosed()) log.error("Error while accepting socket", err);
       }
     }
   }
@@ -55,29 +104,185 @@ public class Server implements Closeable {
   private Runnable handle(Socket client) {
     return () -> {
       log.debug("Connected        ", client.getInetAddress(), client.getPort());
+      clients.add(client);
+      if (isDraining) shutdownInput(client);
 
       try (Socket socket = client;
            DataInputStream in = new DataInputStream(socket.getInputStream());
            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
       ) {
+        socket.setSoTimeout(admission.readTimeoutMillis);
         byte requestMethodIdx = in.readByte();
-        controller.route(requestMethodIdx).handle(socket.getInetAddress(), in, out);
-      } catch (IOException | InvocationTargetException | IllegalAccessException err) {
+
+        if (requestMethodIdx == Controller.KEEP_ALIVE) {
+          serveFrames(socket, in, new DataOutputStream(new BufferedOutputStream(out)));
+        } else {
+          controller.route(requestMethodIdx).handle(socket.getInetAddress(), in, out);
+        }
+      } catch (SocketTimeoutException err) {
+        log.debug("Timed out        {}:{}", client.getInetAddress(), client.getPort());
+      } catch (IOException err) {
         log.error("Error while handling client {}", client, err);
+      } finally {
+        clients.remove(client);
+        admission.release();
       }
 
       log.debug("Ok               {}:{}", client.getInetAddress(), client.getPort());
     };
   }
 
+  // a connection sees the end of input after the request it reads, so it answers it and hangs up
+  private void drain() {
+    pool.shutdown();
+    clients.forEach(Server::shutdownInput);
 
+    try {
+      if (!pool.awaitTermination(DRAIN_MILLIS, TimeUnit.MILLISECONDS)) {
+        log.warn("{} connections are not drained in {} ms", clients.size(), DRAIN_MILLIS);
+        pool.shutdownNow();
+      }
+    } catch (InterruptedException err) {
+      pool.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void shutdownInput(Socket client) {
+    try {
+      client.shutdownInput();
+    } catch (IOException err) {
+      log.debug("Closed           {}:{}", client.getInetAddress(), client.getPort());
+    }
+  }
+
+
+  // requests are answered in order, responses are flushed once the pipelined requests are drained
+  private void serveFrames(Socket client, DataInputStream in, DataOutputStream out) throws IOException {
+    InetAddress clientIp = client.getInetAddress();
+    while (true) {
+      int length;
+      try {
+        client.setSoTimeout(admission.idleTimeoutMillis);
+        length = in.readInt();
+        client.setSoTimeout(admission.readTimeoutMillis);
+      } catch (EOFException hungUp) {
+        out.flush();
+        return;
+      }
+
+      if (length <= 0 || length > Controller.MAX_FRAME_SIZE) throw new IOException("Bad frame length " + length);
+      byte[] request = new byte[length];
+      in.readFully(request);
+
+      ByteBuffer response = controller.respond(clientIp, ByteBuffer.wrap(request));
+      out.writeInt(response.remaining());
+      out.write(response.array(), response.arrayOffset() + response.position(), response.remaining());
+      if (in.available() == 0) out.flush();
+    }
+  }
+
+
+  /**
+   * <tt>--port=N</tt> is 8081 by default.
+   * <tt>--nio</tt> serves clients by a few selector threads, <tt>--threads=N</tt> sets how many (number of cores by default).
+   * <tt>--executor=pool|virtual</tt> runs each connection of the blocking server, or the routes of the NIO one
+   * which {@link Controller#mayBlock}, on a platform or a virtual thread.
+   * <tt>--durability=sync|write|async</tt> tells when an upload is acknowledged, see {@link Journal.Durability}.
+   * <tt>--snapshot-every=N</tt> compacts the journal into the snapshot every N records (100000 by default).
+   * <tt>--cluster=host:port,... --node=i</tt> runs the i-th node of a cluster, see {@link ShardMap},
+   * it listens to its port of the list and keeps its own <tt>journal-i.bin</tt>.
+   * <tt>--replication-port=P</tt> streams the journal to followers, <tt>--follow=host:P</tt> runs a follower
+   * of that leader, see {@link ReplicationServer}.
+   * <tt>--max-connections=N</tt> (10000 by default) answers busy to the clients above it, see {@link Admission},
+   * <tt>--read-timeout=MS</tt> (10000) and <tt>--idle-timeout=MS</tt> (60000) close stalled and idle connections.
+   * <tt>--udp-port=P</tt> serves announces and sources over UDP too, see {@link UdpServer},
+   * by <tt>--udp-threads=N</tt> threads (number of cores by default).
+   * <tt>--checkpoint-every=S</tt> writes seeds to <tt>seeds.bin</tt> every S seconds (60 by default, 0 on exit only),
+   * see {@link SeedsCheckpoint}. SIGTERM drains requests in flight and writes the checkpoint before the exit.
+   */
   public static void main(String[] args) throws IOException {
-    Controller controller = new Controller(new Journal(JOURNAL_PATH));
+    Options options = Options.parse(args);
+    Journal.Durability durability = Journal.Durability.valueOf(options.get("durability", "write").toUpperCase());
+
+    int snapshotEvery = options.getInt("snapshot-every", 100_000);
+    ShardMap shards = options.has("cluster")
+        ? ShardMap.parse(options.get("cluster", ""), options.getInt("node", 0))
+        : ShardMap.single();
+    int port = options.getInt("port", shards.localPort(PORT));
+    Path journalPath = shards.isClustered() ? Paths.get("journal-" + shards.localNode() + ".bin") : JOURNAL_PATH;
+    Path seedsPath = shards.isClustered() ? Paths.get("seeds-" + shards.localNode() + ".bin") : SEEDS_PATH;
+
+    if (!shards.isClustered()) Journal.migrate(TEXT_JOURNAL_PATH, JOURNAL_PATH);
+    Deque<Closeable> opened = new ArrayDeque<>();  // the journal, then what uses it; closed in the reverse order
+    try {
+      Journal journal = open(opened, new Journal(journalPath, durability, snapshotEvery, shards::isLocal));
+      if (options.has("replication-port")) {
+        open(opened, new ReplicationServer(journal, options.getInt("replication-port", 0)));
+      }
+      Replica replica = options.has("follow") ? open(opened, new Replica(journal, options.get("follow", ""))) : null;
+
+      Admission admission = new Admission(options.getInt("max-connections", 10_000),
+          options.getInt("read-timeout", 10_000), options.getInt("idle-timeout", 60_000));
+      Controller controller = new Controller(journal, shards, replica, admission);
+
+      int nThreads = options.getInt("threads", Runtime.getRuntime().availableProcessors());
+      open(opened, new SeedsCheckpoint(controller.activeSeeds(), seedsPath, options.getInt("checkpoint-every", 60)));
+      if (options.has("udp-port")) {
+        open(opened, new UdpServer(controller, options.getInt("udp-port", 0), options.getInt("udp-threads", nThreads)));
+      }
+
+      log.info("Initialize server");
+      ExecutorService pool = TaskExecutors.newExecutor(options.get("executor", "pool"));
+      if (options.has("nio")) {
+        try (NioServer server = new NioServer(controller, port, nThreads, pool, admission)) {
+          closeOnShutdown(server);
+          server.listen();
+        }
+      } else {
+        try (Server server = new Server(controller, port, pool, admission)) {
+          closeOnShutdown(server);
+          server.listen();
+        }
+      }
+    } finally {
+      closeAll(opened);
+    }
+  }
+
+  private static <T extends Closeable> T open(Deque<Closeable> opened, T resource) {
+    opened.push(resource);
+    return resource;
+  }
 
-    log.info("Initialize server");
-    try (Server server = new Server(controller, PORT)) {
-      server.listen();
+  // the last opened is closed first, a failure doesn't keep the others open
+  private static void closeAll(Deque<Closeable> opened) throws IOException {
+    IOException failure = null;
+    while (!opened.isEmpty()) {
+      try {
+        opened.pop().close();
+      } catch (IOException err) {
+        if (failure == null) failure = err;
+        else failure.addSuppressed(err);
+      }
     }
+    if (failure != null) throw failure;
+  }
+
+  // SIGTERM closes the server, so listen() returns once requests in flight are answered, and main closes the rest
+  // in order: UDP, the checkpoint of seeds, the journal; the JVM exits when main is done
+  private static void closeOnShutdown(Closeable server) {
+    Thread main = Thread.currentThread();
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      try {
+        server.close();
+        main.join(SHUTDOWN_MILLIS);
+      } catch (IOException err) {
+        log.error("Error while closing server", err);
+      } catch (InterruptedException err) {
+        Thread.currentThread().interrupt();
+      }
+    }, "shutdown"));
   }
 
   public static final Logger log = LoggerFactory.getLogger("Server");
@@ -0,0 +1,115 @@
+package tracker;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Consistent-hash ring of the tracker cluster: every node puts 64 virtual tokens on the ring,
+ * a file belongs to the node of the first token at or after <tt>hash(fileId)</tt>, wrapping around.
+ * A node publishes only the ids it owns, so ids of the nodes never clash and nothing is coordinated.
+ * Tokens depend on the node addresses only, so a new node takes a part of every range, not all of one.
+ */
+class ShardMap {
+  private static final int VIRTUAL_NODES = 64;
+
+  private final List<String> hosts;
+  private final List<Short> ports;
+  private final int localNode;
+  private final long[] ring;  // token << 32 | node, sorted by token
+
+
+  private ShardMap(List<String> hosts, List<Short> ports, int localNode) {
+    this.hosts = hosts;
+    this.ports = ports;
+    this.localNode = localNode;
+    this.ring = new long[hosts.size() * VIRTUAL_NODES];
+
+    for (int node = 0; node < hosts.size(); node++) {
+      for (int v = 0; v < VIRTUAL_NODES; v++) {
+        int token = mix((hosts.get(node) + ":" + ports.get(node) + "#" + v).hashCode());
+        ring[node * VIRTUAL_NODES + v] = (long) token << 32 | node;
+      }
+    }
+    Arrays.sort(ring);
+  }
+
+  /**
+   * A tracker out of a cluster owns every file.
+   */
+  static ShardMap single() {
+    return new ShardMap(Collections.emptyList(), Collections.emptyList(), 0);
+  }
+
+  /**
+   * <tt>host:port,host:port,...</tt>, the same list for every node, <tt>localNode</tt> is an index in it.
+   */
+  static ShardMap parse(String cluster, int localNode) {
+    List<String> hosts = new ArrayList<>();
+    List<Short> ports = new ArrayList<>();
+
+    for (String address : cluster.split(",")) {
+      int colon = address.lastIndexOf(':');
+      if (colon < 0) throw new IllegalArgumentException("Expected host:port, got " + address);
+      hosts.add(address.substring(0, colon));
+      ports.add(Short.parseShort(address.substring(colon + 1)));
+    }
+
+    if (localNode < 0 || localNode >= hosts.size()) throw new IllegalArgumentException("No node " + localNode);
+    return new ShardMap(hosts, ports, localNode);
+  }
+
+  boolean isClustered() {
+    return !hosts.isEmpty();
+  }
+
+  int localNode() {
+    return localNode;
+  }
+
+  int localPort(int defaultPort) {
+    return isClustered() ? ports.get(localNode) : defaultPort;
+  }
+
+  boolean isLocal(int fileId) {
+    return !isClustered() || ownerOf(fileId) == localNode;
+  }
+
+  int ownerOf(int fileId) {
+    long key = (long) mix(fileId) << 32;
+    int idx = Arrays.binarySearch(ring, key);
+    if (idx < 0) idx = -idx - 1;
+    return (int) ring[idx == ring.length ? 0 : idx];
+  }
+
+  /**
+   * <tt><numOfNodes: Int> (<host: String> <port: Short>)* <numOfTokens: Int> (<token: Int> <node: Int>)*</tt>,
+   * tokens are sorted. A tracker out of a cluster has no nodes.
+   */
+  void writeTo(DataOutputStream out) throws IOException {
+    out.writeInt(hosts.size());
+    for (int node = 0; node < hosts.size(); node++) {
+      out.writeUTF(hosts.get(node));
+      out.writeShort(ports.get(node));
+    }
+
+    out.writeInt(ring.length);
+    for (long entry : ring) {
+      out.writeInt((int) (entry >> 32));
+      out.writeInt((int) entry);
+    }
+  }
+
+  // the finalizer of murmur3, clients hash file ids the same way
+  static int mix(int h) {
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+}
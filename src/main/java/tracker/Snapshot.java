@@ -0,0 +1,213 @@
+package tracker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Records of the journal up to <tt>lastFileId</tt>, memory-mapped, so opening costs nothing whatever the size:
+ * <pre>
+ *   <magic: Int> <count: Int> <lastFileId: Int> <recordsLength: Long>
+ *   (<id: Int> <offset: Long>)*   index sorted by id, offsets are in the records
+ *   (<id: Int> <name: String> <size: Long>)*   records, encoded as in the list route
+ * </pre>
+ * A mapping is at most 2 GB, so the index and the records are mapped by segments of <tt>SEGMENT_SIZE</tt>.
+ */
+class Snapshot {
+  private static final int MAGIC = 0x54524B53;  // TRKS
+  private static final int HEADER_SIZE = 3 * Integer.BYTES + Long.BYTES;
+  private static final int INDEX_ENTRY_SIZE = Integer.BYTES + Long.BYTES;
+  private static final int SEGMENT_SIZE = 1 << 30;
+
+  static final Snapshot EMPTY = new Snapshot(0, -1, Region.EMPTY, Region.EMPTY);
+
+  final int count;
+  final int lastFileId;
+  private final Region index;
+  private final Region records;
+
+
+  private Snapshot(int count, int lastFileId, Region index, Region records) {
+    this.count = count;
+    this.lastFileId = lastFileId;
+    this.index = index;
+    this.records = records;
+  }
+
+  static Snapshot open(Path path) throws IOException {
+    return open(path, SEGMENT_SIZE);
+  }
+
+  static Snapshot open(Path path, int segmentSize) throws IOException {
+    if (!Files.exists(path)) return EMPTY;
+
+    try (FileChannel channel = FileChannel.open(path, READ)) {
+      long size = channel.size();
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      while (header.hasRemaining() && channel.read(header, header.position()) >= 0) ;
+      if (header.hasRemaining() || header.getInt(0) != MAGIC) throw new IOException("Not a snapshot " + path);
+
+      int count = header.getInt(Integer.BYTES);
+      int lastFileId = header.getInt(2 * Integer.BYTES);
+      long recordsLength = header.getLong(3 * Integer.BYTES);
+      long recordsStart = HEADER_SIZE + (long) count * INDEX_ENTRY_SIZE;
+      if (count < 0 || recordsLength < 0 || recordsStart + recordsLength != size) {
+        throw new IOException("Truncated snapshot " + path);
+      }
+
+      return new Snapshot(count, lastFileId,
+          Region.map(channel, HEADER_SIZE, recordsStart - HEADER_SIZE, segmentSize),
+          Region.map(channel, recordsStart, recordsLength, segmentSize));
+    }
+  }
+
+  /**
+   * Writes records of the <tt>previous</tt> snapshot followed by the <tt>tail</tt> into a new one,
+   * the old parts are copied in bulk; <tt>tailOffsets</tt> tell where the records start in <tt>encodedTail</tt>.
+   * The file is replaced atomically.
+   */
+  static Snapshot write(Path path, Snapshot previous, List<Journal.Record> tail, int[] tailOffsets,
+                        byte[] encodedTail, int tailLength) throws IOException {
+    ByteBuffer tailIndex = ByteBuffer.allocate(tail.size() * INDEX_ENTRY_SIZE);
+    for (int i = 0; i < tail.size(); i++) {
+      tailIndex.putInt(tail.get(i).id).putLong(previous.records.length + tailOffsets[i]);
+    }
+    tailIndex.flip();
+
+    int lastFileId = tail.isEmpty() ? previous.lastFileId : tail.get(tail.size() - 1).id;
+    long recordsLength = previous.records.length + tailLength;
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    header.putInt(MAGIC).putInt(previous.count + tail.size()).putInt(lastFileId).putLong(recordsLength);
+    header.flip();
+
+    Path written = Paths.get(path + ".tmp");
+    try (FileChannel out = FileChannel.open(written, CREATE, TRUNCATE_EXISTING, WRITE)) {
+      writeFully(out, header);
+      for (ByteBuffer segment : previous.index.segments()) writeFully(out, segment);
+      writeFully(out, tailIndex);
+      for (ByteBuffer segment : previous.records.segments()) writeFully(out, segment);
+      writeFully(out, ByteBuffer.wrap(encodedTail, 0, tailLength));
+      out.force(true);
+    }
+
+    Files.move(written, path, ATOMIC_MOVE, REPLACE_EXISTING);
+    return open(path);
+  }
+
+
+  boolean contains(int id) {
+    return position(id) >= 0;
+  }
+
+  /**
+   * Returns the record with this id, or null, decoded from the mapped file.
+   */
+  Journal.Record find(int id) throws IOException {
+    int position = position(id);
+    if (position < 0) return null;
+
+    long offset = index.getLong((long) position * INDEX_ENTRY_SIZE + Integer.BYTES);
+    int nameLength = records.getShort(offset + Integer.BYTES) & 0xFFFF;
+    return Journal.Record.decode(records.bytes(offset, Integer.BYTES + Short.BYTES + nameLength + Long.BYTES));
+  }
+
+  /**
+   * Encoded records in order, views which don't share the position with others.
+   */
+  ByteBuffer[] records() {
+    return records.segments();
+  }
+
+  // binary search over the index, ids are increasing
+  private int position(int id) {
+    int low = 0;
+    int high = count - 1;
+
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int midId = index.getInt((long) mid * INDEX_ENTRY_SIZE);
+      if (midId < id) low = mid + 1;
+      else if (midId > id) high = mid - 1;
+      else return mid;
+    }
+
+    return -1;
+  }
+
+  private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) out.write(buffer);
+  }
+
+
+  // a part of the file mapped by segments, a value may cross the border of two of them
+  private static class Region {
+    static final Region EMPTY = new Region(new ByteBuffer[0], 0, 1);
+
+    final long length;
+    private final ByteBuffer[] segments;
+    private final int segmentSize;
+
+    private Region(ByteBuffer[] segments, long length, int segmentSize) {
+      this.segments = segments;
+      this.length = length;
+      this.segmentSize = segmentSize;
+    }
+
+    static Region map(FileChannel channel, long from, long length, int segmentSize) throws IOException {
+      ByteBuffer[] segments = new ByteBuffer[(int) ((length + segmentSize - 1) / segmentSize)];
+      for (int i = 0; i < segments.length; i++) {
+        long start = (long) i * segmentSize;
+        segments[i] = channel.map(READ_ONLY, from + start, Math.min(segmentSize, length - start));
+      }
+      return new Region(segments, length, segmentSize);
+    }
+
+    ByteBuffer[] segments() {
+      ByteBuffer[] views = new ByteBuffer[segments.length];
+      for (int i = 0; i < views.length; i++) views[i] = segments[i].duplicate();
+      return views;
+    }
+
+    short getShort(long position) {
+      ByteBuffer segment = segments[(int) (position / segmentSize)];
+      int offset = (int) (position % segmentSize);
+      if (offset + Short.BYTES <= segment.limit()) return segment.getShort(offset);
+      return ByteBuffer.wrap(bytes(position, Short.BYTES)).getShort();
+    }
+
+    int getInt(long position) {
+      ByteBuffer segment = segments[(int) (position / segmentSize)];
+      int offset = (int) (position % segmentSize);
+      if (offset + Integer.BYTES <= segment.limit()) return segment.getInt(offset);
+      return ByteBuffer.wrap(bytes(position, Integer.BYTES)).getInt();
+    }
+
+    long getLong(long position) {
+      ByteBuffer segment = segments[(int) (position / segmentSize)];
+      int offset = (int) (position % segmentSize);
+      if (offset + Long.BYTES <= segment.limit()) return segment.getLong(offset);
+      return ByteBuffer.wrap(bytes(position, Long.BYTES)).getLong();
+    }
+
+    byte[] bytes(long position, int length) {
+      byte[] bytes = new byte[length];
+      for (int copied = 0; copied < length; ) {
+        ByteBuffer segment = segments[(int) ((position + copied) / segmentSize)].duplicate();
+        segment.position((int) ((position + copied) % segmentSize));
+        int chunk = Math.min(length - copied, segment.remaining());
+        segment.get(bytes, copied, chunk);
+        copied += chunk;
+      }
+      return bytes;
+    }
+  }
+}
@@ -0,0 +1,347 @@
+package tracker;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Seeds of a single file: an open-addressing set of packed peers (see {@link Seed#pack}), 8 bytes per peer.
+ * Linear probing with backward-shift deletion, so there are no tombstones to clean up.
+ * When a seed announced last is kept once per seed in {@link ActiveSeeds}, not per file.
+ * <p>
+ * The upper 15 bits of a slot, unused by a packed peer, keep hints of the seed (see {@link #hints}):
+ * how much of the file it has and how many upload slots it has free. They make the weight of the peer in samples.
+ * <p>
+ * Reads are optimistic: they don't take a lock, and are done again under the read lock only if a join or a leave
+ * happened meanwhile. A write never fills the last free slot and never touches a table it replaced,
+ * so a read of a table being changed still ends, its result is just thrown away.
+ * A seed announcing again is already in the swarm and doesn't take the write lock either.
+ */
+class Swarm {
+  private static final int MIN_CAPACITY = 4;
+  private static final long FREE = 0;
+  private static final int PROBES_PER_VALIDATION = 64;
+  private static final int PROBES_PER_PEER = 64;  // then a big swarm of unequal weights is sampled as a small one
+  private static final int MAX_WEIGHT_TO_MEAN = 8;  // times the mean weight, a heavier peer is sampled as this heavy
+  private static final long[] PROBES_EXHAUSTED = new long[0];
+
+  private static final int HINTS_SHIFT = 49;
+  private static final long PEER_MASK = (1L << HINTS_SHIFT) - 1;
+  private static final int MAX_FREE_SLOTS = 255;
+  private static final int NO_HINTS = 0;
+  static final int DEFAULT_WEIGHT = weight(hints(100, 1));  // a seed without hints is taken for a full one
+
+  private final StampedLock lock = new StampedLock();
+  private long[] peers;  // allocated on the first announce, millions of files have no seeds at all
+  private int size;
+  private int maxWeight;  // not less than the weight of any peer, reset on resize
+  private long totalWeight;  // of all the peers
+
+
+  /**
+   * <tt>completedPercent + 1</tt> in the lower 7 bits and free upload slots (255 at most) in the upper 8 bits,
+   * so hints of a seed which sent them are never 0.
+   */
+  static int hints(int completedPercent, int freeSlots) {
+    int completed = Math.min(Math.max(completedPercent, 0), 100);
+    return Math.min(Math.max(freeSlots, 0), MAX_FREE_SLOTS) << 7 | completed + 1;
+  }
+
+  /**
+   * The seed joins the swarm without hints, a seed which is in the swarm already keeps its ones.
+   */
+  boolean add(long peer) {
+    long stamp = lock.tryOptimisticRead();
+    if (contains(peers, peer) && lock.validate(stamp)) return false;
+
+    stamp = lock.writeLock();
+    try {
+      if (peers == null || 4 * (size + 1) > 3 * peers.length) resize(peers == null ? MIN_CAPACITY : 2 * peers.length);
+
+      int idx = indexOf(peers, peer);
+      if (peers[idx] != FREE) return false;
+
+      peers[idx] = peer;
+      size++;
+      totalWeight += DEFAULT_WEIGHT;
+      maxWeight = Math.max(maxWeight, DEFAULT_WEIGHT);
+      return true;
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Replaces hints of the seed, returns false if it's not in the swarm. Same hints again take no write lock.
+   */
+  boolean hint(long peer, int hints) {
+    long hinted = peer | (long) hints << HINTS_SHIFT;
+    long stamp = lock.tryOptimisticRead();
+    long[] table = peers;
+    if (table != null && table[indexOf(table, peer)] == hinted && lock.validate(stamp)) return true;
+
+    stamp = lock.writeLock();
+    try {
+      if (peers == null) return false;
+
+      int idx = indexOf(peers, peer);
+      if (peers[idx] == FREE) return false;
+
+      totalWeight += weight(hints) - weight(peers[idx]);
+      peers[idx] = hinted;
+      maxWeight = Math.max(maxWeight, weight(hints));
+      return true;
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  boolean remove(long peer) {
+    long stamp = lock.writeLock();
+    try {
+      if (peers == null) return false;
+
+      int idx = indexOf(peers, peer);
+      if (peers[idx] == FREE) return false;
+
+      totalWeight -= weight(peers[idx]);
+      delete(idx);
+      if (size == 0) {
+        peers = null;
+        maxWeight = 0;
+      } else if (peers.length > MIN_CAPACITY && 8 * size < peers.length) {
+        resize(peers.length / 2);
+      }
+      return true;
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * All the peers, in the order of slots.
+   */
+  long[] toArray() {
+    long stamp = lock.tryOptimisticRead();
+    long[] table = peers;
+    long[] copy = table == null ? null : table.clone();
+    if (!lock.validate(stamp)) {
+      stamp = lock.readLock();
+      try {
+        copy = peers == null ? null : peers.clone();
+      } finally {
+        lock.unlockRead(stamp);
+      }
+    }
+
+    if (copy == null) return new long[0];
+    int n = 0;
+    for (long slot : copy) {
+      if (slot != FREE) copy[n++] = slot & PEER_MASK;
+    }
+    return Arrays.copyOf(copy, n);
+  }
+
+  /**
+   * Up to <tt>max</tt> peers chosen at random in proportion to their weights, without repeats: every next peer
+   * is drawn from the rest as if the ones before were not in the swarm, so heavier peers tend to come first.
+   * A big swarm is sampled by probing random slots, a hit is taken with the chance of its weight to the largest one;
+   * a small one by the weighted reservoir of all its peers. A weight counts up to <tt>MAX_WEIGHT_TO_MEAN</tt> times
+   * the mean one, so a seed claiming all the free slots doesn't make probing miss the others.
+   */
+  long[] sample(int max, Random random) {
+    if (max <= 0) return new long[0];
+
+    long stamp = lock.tryOptimisticRead();
+    if (stamp != 0) {
+      long[] sample = sample(peers, size, weightCap(size, maxWeight, totalWeight), max, random, stamp);
+      if (sample != null && lock.validate(stamp)) return sample;
+    }
+
+    stamp = lock.readLock();
+    try {
+      return sample(peers, size, weightCap(size, maxWeight, totalWeight), max, random, 0);
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  int size() {
+    long stamp = lock.tryOptimisticRead();
+    int size = this.size;
+    if (lock.validate(stamp)) return size;
+
+    stamp = lock.readLock();
+    try {
+      return this.size;
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+
+  // the largest weight a peer is sampled with; nobody is capped while all the weights are equal
+  private static int weightCap(int size, int maxWeight, long totalWeight) {
+    if (size == 0) return 1;
+    return (int) Math.max(1, Math.min(maxWeight, MAX_WEIGHT_TO_MEAN * totalWeight / size));
+  }
+
+  // the stamp of an optimistic read, or 0 under the lock; null if a write happened meanwhile
+  private long[] sample(long[] table, int size, int weightCap, int max, Random random, long stamp) {
+    if (table == null) return new long[0];
+    if (2 * max <= size) {
+      long[] sample = probe(table, weightCap, max, random, stamp);
+      if (sample != PROBES_EXHAUSTED) return sample;
+    }
+    return reservoir(table, size, weightCap, max, random);
+  }
+
+  // the table is at least 1/8 full and at most half of the peers are taken, so a hit takes a few probes,
+  // unless most peers are much lighter than the heaviest one, then it gives up;
+  // a table changed meanwhile may have less peers than that, so an optimistic read checks it has not
+  private long[] probe(long[] table, int weightCap, int max, Random random, long stamp) {
+    long[] sample = new long[max];
+    IntSet taken = new IntSet(max);
+
+    for (int n = 0, probes = 0; n < max; probes++) {
+      if (stamp != 0 && probes % PROBES_PER_VALIDATION == 0 && !lock.validate(stamp)) return null;
+      if (probes > PROBES_PER_PEER * max) return PROBES_EXHAUSTED;
+
+      int idx = random.nextInt(table.length);
+      long slot = table[idx];
+      if (slot == FREE) continue;
+
+      int weight = weight(slot);  // the heaviest peers, all of them if nobody sent hints, are taken for sure
+      if (weight < weightCap && random.nextInt(weightCap) >= weight) continue;
+      if (taken.add(idx)) sample[n++] = slot & PEER_MASK;
+    }
+
+    return sample;
+  }
+
+  // A-Res: every peer gets the key u^(1 / weight) for a random u, the peers of the largest keys are the sample,
+  // in the order of keys; ln(u) / weight is compared instead, it's in the same order
+  private static long[] reservoir(long[] table, int size, int weightCap, int max, Random random) {
+    int capacity = Math.min(max, size);
+    long[] sample = new long[capacity];
+    double[] keys = new double[capacity];  // a min-heap, the root is the first to be replaced
+    int n = 0;
+
+    for (long slot : table) {
+      if (slot == FREE) continue;
+
+      double key = Math.log(random.nextDouble()) / Math.min(weight(slot), weightCap);
+      if (n < capacity) {
+        sample[n] = slot & PEER_MASK;
+        keys[n] = key;
+        siftUp(sample, keys, n++);
+      } else if (n > 0 && key > keys[0]) {
+        sample[0] = slot & PEER_MASK;
+        keys[0] = key;
+        siftDown(sample, keys, 0, n);
+      }
+    }
+
+    // the lightest key goes to the end, so the heaviest one ends up first
+    for (int last = n - 1; last > 0; last--) {
+      swap(sample, keys, 0, last);
+      siftDown(sample, keys, 0, last);
+    }
+    return n == capacity ? sample : Arrays.copyOf(sample, n);
+  }
+
+  private static void siftUp(long[] sample, double[] keys, int idx) {
+    while (idx > 0) {
+      int parent = (idx - 1) / 2;
+      if (keys[parent] <= keys[idx]) return;
+      swap(sample, keys, parent, idx);
+      idx = parent;
+    }
+  }
+
+  private static void siftDown(long[] sample, double[] keys, int idx, int n) {
+    while (true) {
+      int smallest = idx;
+      int left = 2 * idx + 1;
+      int right = left + 1;
+      if (left < n && keys[left] < keys[smallest]) smallest = left;
+      if (right < n && keys[right] < keys[smallest]) smallest = right;
+      if (smallest == idx) return;
+      swap(sample, keys, smallest, idx);
+      idx = smallest;
+    }
+  }
+
+  private static void swap(long[] sample, double[] keys, int i, int j) {
+    long peer = sample[i];
+    sample[i] = sample[j];
+    sample[j] = peer;
+    double key = keys[i];
+    keys[i] = keys[j];
+    keys[j] = key;
+  }
+
+  // (1 + completed percent) * (1 + free slots)
+  private static int weight(long slot) {
+    int hints = (int) (slot >>> HINTS_SHIFT);
+    return hints == NO_HINTS ? DEFAULT_WEIGHT : weight(hints);
+  }
+
+  private static int weight(int hints) {
+    return (hints & 0x7F) * (1 + (hints >>> 7));
+  }
+
+  private static boolean contains(long[] table, long peer) {
+    return table != null && table[indexOf(table, peer)] != FREE;
+  }
+
+  // the slot of the peer, whatever its hints are, or the free slot where it should be put
+  private static int indexOf(long[] table, long peer) {
+    int mask = table.length - 1;
+    int idx = home(peer, mask);
+    while (table[idx] != FREE && (table[idx] & PEER_MASK) != peer) idx = (idx + 1) & mask;
+    return idx;
+  }
+
+  // shift the following peers of the cluster back, if the freed slot is closer to their home
+  private void delete(int idx) {
+    int mask = peers.length - 1;
+    int next = idx;
+    size--;
+
+    while (true) {
+      next = (next + 1) & mask;
+      if (peers[next] == FREE) break;
+
+      int home = home(peers[next] & PEER_MASK, mask);
+      boolean canMove = idx <= next ? (home <= idx || home > next) : (home <= idx && home > next);
+      if (!canMove) continue;
+
+      peers[idx] = peers[next];
+      idx = next;
+    }
+
+    peers[idx] = FREE;
+  }
+
+  // the largest weight is counted anew, the one of peers which left is forgotten
+  private void resize(int capacity) {
+    long[] old = peers;
+    peers = new long[capacity];
+    maxWeight = 0;
+    totalWeight = 0;
+
+    if (old == null) return;
+    for (long slot : old) {
+      if (slot == FREE) continue;
+      peers[indexOf(peers, slot & PEER_MASK)] = slot;
+      maxWeight = Math.max(maxWeight, weight(slot));
+      totalWeight += weight(slot);
+    }
+  }
+
+  private static int home(long peer, int mask) {
+    long h = peer * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32)) & mask;
+  }
+}
@@ -0,0 +1,117 @@
+package tracker;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * Hierarchical timing wheel: every level has 64 slots, a slot of the level <tt>L</tt> spans 64^L ticks.
+ * Scheduling is O(1), entries of a higher level are cascaded down when the lower level wraps around,
+ * and an advance by one tick touches only the entries which are due.
+ * <p>
+ * An entry is a <tt>long</tt> item with its deadline, both are kept in primitive arrays,
+ * so millions of scheduled entries don't turn into millions of objects.
+ */
+class TimingWheel {
+  private static final int BITS = 6;
+  private static final int SLOTS = 1 << BITS;
+  private static final int MASK = SLOTS - 1;
+  private static final long[] EMPTY = new long[0];
+
+  private final long[][][] levels;  // [level][slot] → (item, deadline)*
+  private final int[][] sizes;      // number of used longs in a slot
+  private long currentTick;
+
+
+  TimingWheel(int numOfLevels, long currentTick) {
+    this.levels = new long[numOfLevels][SLOTS][];
+    this.sizes = new int[numOfLevels][SLOTS];
+    this.currentTick = currentTick;
+  }
+
+  /**
+   * The item will be passed to a consumer of <tt>advance</tt> once the <tt>deadline</tt> tick is reached.
+   */
+  synchronized void schedule(long item, long deadline) {
+    place(item, Math.max(deadline, currentTick + 1));
+  }
+
+  /**
+   * Moves the wheel up to <tt>tick</tt>, due items are consumed outside of the wheel lock,
+   * so the consumer may schedule them again.
+   */
+  void advance(long tick, LongConsumer onExpired) {
+    long[] expired = EMPTY;
+    int numOfExpired = 0;
+
+    synchronized (this) {
+      while (currentTick < tick) {
+        currentTick++;
+
+        for (int level = levels.length - 1; level > 0; level--) {
+          if ((currentTick & ((1L << BITS * level) - 1)) == 0) cascade(level);
+        }
+
+        int idx = (int) (currentTick & MASK);
+        int size = sizes[0][idx];
+        if (size == 0) continue;
+
+        if (numOfExpired + size > expired.length) {
+          expired = Arrays.copyOf(expired, Math.max(numOfExpired + size, 2 * expired.length));
+        }
+        System.arraycopy(levels[0][idx], 0, expired, numOfExpired, size);
+        numOfExpired += size;
+        clear(0, idx);
+      }
+    }
+
+    for (int i = 0; i < numOfExpired; i += 2) {
+      onExpired.accept(expired[i]);
+    }
+  }
+
+
+  private void cascade(int level) {
+    int idx = (int) ((currentTick >>> BITS * level) & MASK);
+    long[] entries = levels[level][idx];
+    int size = sizes[level][idx];
+    clear(level, idx);
+
+    for (int i = 0; i < size; i += 2) {
+      place(entries[i], entries[i + 1]);
+    }
+  }
+
+  // the lowest level where the deadline is less than a full turn ahead
+  private void place(long item, long deadline) {
+    int top = levels.length - 1;
+
+    for (int level = 0; level <= top; level++) {
+      long distance = (deadline >>> BITS * level) - (currentTick >>> BITS * level);
+      if (distance < SLOTS || level == top) {
+        int idx = (int) (((currentTick >>> BITS * level) + Math.min(distance, MASK)) & MASK);
+        append(level, idx, item, deadline);
+        return;
+      }
+    }
+  }
+
+  private void append(int level, int idx, long item, long deadline) {
+    long[] entries = levels[level][idx];
+    int size = sizes[level][idx];
+
+    if (entries == null) {
+      entries = levels[level][idx] = new long[8];
+    } else if (size == entries.length) {
+      entries = levels[level][idx] = Arrays.copyOf(entries, 2 * size);
+    }
+
+    entries[size] = item;
+    entries[size + 1] = deadline;
+    sizes[level][idx] = size + 2;
+  }
+
+  private void clear(int level, int idx) {
+    levels[level][idx] = null;
+    sizes[level][idx] = 0;
+  }
+}
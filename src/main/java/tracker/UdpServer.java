@@ -0,0 +1,151 @@
+package tracker;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import static tracker.Server.log;
+
+/**
+ * Announces and sources over UDP, a datagram each way instead of a TCP connection, as in the UDP tracker of BitTorrent.
+ * Every request is <tt><connectionId: Long> <action: Int> <transactionId: Int> <body></tt>, every response is
+ * <tt><action: Int> <transactionId: Int> <body></tt>, the client matches them by the transaction id:
+ * <ul>
+ *   <li><tt>0</tt> — connect, the connection id is <tt>0x41727101980</tt> and the body is empty,
+ *   the response body is <tt><connectionId: Long></tt> to send the next requests with,</li>
+ *   <li><tt>1</tt> — a request of an update, delta update, hints, sources, sampled or batched sources route,
+ *   the body and the response body are the same as over TCP,</li>
+ *   <li><tt>3</tt> — an error, <tt><message: String></tt>, a bad connection id is answered so as well.</li>
+ * </ul>
+ * A connection id is a MAC of the client address and the minute it was issued, so it costs no state, and a spoofed
+ * address can't announce: the id is sent to the real owner of the address only. An id lives for a minute or two.
+ * A few threads receive from the same socket, each one answers the datagrams it gets.
+ */
+class UdpServer implements Closeable {
+  static final long PROTOCOL_ID = 0x41727101980L;
+  static final int CONNECT = 0;
+  static final int REQUEST = 1;
+  static final int ERROR = 3;
+  private static final int HEADER_SIZE = Long.BYTES + 2 * Integer.BYTES;
+  private static final int MAX_DATAGRAM_SIZE = 65_507;
+  private static final byte[] ALLOWED_ROUTES = {3, 4, 5, 8, 12, 13};
+
+  private final Controller controller;
+  private final DatagramChannel channel;
+  private final SecretKeySpec secret;
+
+
+  UdpServer(Controller controller, int port, int nThreads) throws IOException {
+    this.controller = controller;
+    this.channel = DatagramChannel.open().bind(new InetSocketAddress(port));
+
+    byte[] key = new byte[32];
+    new SecureRandom().nextBytes(key);
+    this.secret = new SecretKeySpec(key, "HmacSHA256");
+
+    for (int i = 0; i < nThreads; i++) {
+      Mac mac = newMac();
+      Thread receiver = new Thread(() -> receive(mac), "udp-" + i);
+      receiver.setDaemon(true);
+      receiver.start();
+    }
+    log.info("Serve announces over UDP at port {} with {} threads", port, nThreads);
+  }
+
+  @Override public void close() throws IOException {
+    channel.close();
+  }
+
+
+  // a MAC is not thread-safe, every thread has its own one
+  private Mac newMac() throws IOException {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(secret);
+      return mac;
+    } catch (GeneralSecurityException err) {
+      throw new IOException("Can't sign connection ids", err);
+    }
+  }
+
+  private void receive(Mac mac) {
+    ByteBuffer request = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+    ByteBuffer response = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+
+    while (channel.isOpen()) {
+      try {
+        request.clear();
+        InetSocketAddress client = (InetSocketAddress) channel.receive(request);
+        request.flip();
+        if (request.remaining() < HEADER_SIZE) continue;
+
+        response.clear();
+        respond(mac, client, request, response);
+        response.flip();
+        channel.send(response, client);
+      } catch (ClosedChannelException err) {
+        break;
+      } catch (IOException | RuntimeException err) {
+        log.error("Error while handling a datagram", err);
+      }
+    }
+  }
+
+  private void respond(Mac mac, InetSocketAddress client, ByteBuffer request, ByteBuffer response) {
+    long connectionId = request.getLong();
+    int action = request.getInt();
+    int transactionId = request.getInt();
+    long minute = TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis());
+
+    if (action == CONNECT && connectionId == PROTOCOL_ID) {
+      response.putInt(CONNECT).putInt(transactionId).putLong(connectionId(mac, client, minute));
+      return;
+    }
+
+    if (connectionId != connectionId(mac, client, minute) && connectionId != connectionId(mac, client, minute - 1)) {
+      error(response, transactionId, "Bad connection id");
+    } else if (action != REQUEST || !request.hasRemaining() || !isAllowed(request.get(request.position()))) {
+      error(response, transactionId, "Not allowed over UDP");
+    } else {
+      try {
+        ByteBuffer body = controller.respond(client.getAddress(), request);
+        if (body.remaining() > response.remaining() - 2 * Integer.BYTES) {
+          error(response, transactionId, "Response doesn't fit a datagram");
+        } else {
+          response.putInt(REQUEST).putInt(transactionId).put(body);
+        }
+      } catch (IOException | BufferUnderflowException err) {
+        error(response, transactionId, "Bad request: " + err.getMessage());
+      }
+    }
+  }
+
+  private static long connectionId(Mac mac, InetSocketAddress client, long minute) {
+    mac.update(client.getAddress().getAddress());
+    mac.update(ByteBuffer.allocate(Integer.BYTES + Long.BYTES).putInt(client.getPort()).putLong(minute).array());
+    return ByteBuffer.wrap(mac.doFinal()).getLong();
+  }
+
+  private static boolean isAllowed(byte route) {
+    for (byte allowed : ALLOWED_ROUTES) {
+      if (allowed == route) return true;
+    }
+    return false;
+  }
+
+  private static void error(ByteBuffer response, int transactionId, String message) {
+    response.clear();
+    byte[] text = message.getBytes(StandardCharsets.UTF_8);
+    response.putInt(ERROR).putInt(transactionId).putShort((short) text.length).put(text);
+  }
+}
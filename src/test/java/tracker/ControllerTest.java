@@ -0,0 +1,112 @@
+package tracker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ControllerTest {
+  private static final short PORT = 8080;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+  private Journal journal;
+  private Controller controller;
+  private InetAddress client;
+
+  @Before public void setUp() throws IOException {
+    journal = new Journal(folder.getRoot().toPath().resolve("journal.bin"), Journal.Durability.WRITE, 100, id -> true);
+    controller = new Controller(journal, ShardMap.single(), null);
+    client = InetAddress.getLoopbackAddress();
+  }
+
+  @After public void tearDown() throws IOException {
+    journal.close();
+  }
+
+  @Test public void negativeIdsOfDeltaUpdateAreDropped() throws IOException {
+    ByteBuffer update = ByteBuffer.allocate(11).put((byte) 4).putShort(PORT).putInt(1).putInt(7);
+    controller.respond(client, (ByteBuffer) update.flip());
+
+    // 15 bytes: nothing added, -1 removed
+    ByteBuffer delta = ByteBuffer.allocate(15).put((byte) 5).putShort(PORT).putInt(0).putInt(1).putInt(-1);
+    assertEquals(1, controller.respond(client, (ByteBuffer) delta.flip()).get());
+
+    assertEquals(1, controller.activeSeeds().writeTo(new DataOutputStream(new ByteArrayOutputStream())));
+  }
+
+  @Test public void requestReceivedInPartsIsCountedOnce() throws IOException {
+    byte[] update = ByteBuffer.allocate(11).put((byte) 4).putShort(PORT).putInt(1).putInt(7).array();
+
+    for (int received = 1; received < update.length; received++) {
+      try {
+        controller.respond(client, ByteBuffer.wrap(update, 0, received), true);
+        fail("Request of " + received + " bytes is incomplete");
+      } catch (EOFException notYet) {
+        // waits for more bytes
+      }
+    }
+    controller.respond(client, ByteBuffer.wrap(update), true);
+
+    InstrumentedRoute route = routeNamed("update");
+    assertEquals(1, route.getCalls());
+    assertEquals(0, route.getFailures());
+  }
+
+  @Test(timeout = 10_000) public void filesAreLookedUpAndSearchedByName() throws IOException {
+    journal.add(1, "Holiday Photos.zip");
+    int movie = journal.add(2, "movie.mkv");
+    journal.add(3, "photos-2.tar");
+
+    ByteBuffer lookup = ByteBuffer.allocate(5).put((byte) 6).putInt(movie);
+    DataInputStream found = responseOf(lookup);
+    assertTrue(found.readBoolean());
+    assertEquals("movie.mkv", found.readUTF());
+    assertEquals(2, found.readLong());
+
+    // a page of one, then the rest after its cursor
+    assertEquals(Collections.singletonList("Holiday Photos.zip"), search("photo", -1, 1));
+    assertEquals(Collections.singletonList("photos-2.tar"), search("photo", movie - 1, 10));
+  }
+
+
+  private List<String> search(String query, int afterId, int limit) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeByte(7);
+    out.writeBoolean(false);
+    out.writeUTF(query);
+    out.writeInt(afterId);
+    out.writeInt(limit);
+
+    DataInputStream in = responseOf(ByteBuffer.wrap(bytes.toByteArray()));
+    List<String> names = new ArrayList<>();
+    for (int count = in.readInt(); count > 0; count--) names.add(Journal.Record.read(in).name);
+    return names;
+  }
+
+  private DataInputStream responseOf(ByteBuffer request) throws IOException {
+    request.rewind();
+    ByteBuffer response = controller.respond(client, request);
+    byte[] bytes = new byte[response.remaining()];
+    response.get(bytes);
+    return new DataInputStream(new ByteArrayInputStream(bytes));
+  }
+
+  private InstrumentedRoute routeNamed(String name) {
+    return controller.routeStats().stream().filter(route -> route.name.equals(name)).findFirst().get();
+  }}
@@ -0,0 +1,31 @@
+package tracker;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class IntSetTest {
+  @Test public void freeMarkerIsNeverAnElement() {
+    IntSet set = new IntSet(0);
+    set.add(1);
+
+    assertFalse(set.contains(-1));
+    assertFalse(set.remove(-1));
+    assertEquals(1, set.size());
+    assertArrayEquals(new int[]{1}, set.toArray());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void freeMarkerCantBeAdded() {
+    new IntSet(0).add(-1);
+  }
+
+  @Test public void addsAndRemovesThroughResizes() {
+    IntSet set = new IntSet(0);
+    for (int i = 0; i < 1000; i++) assertTrue(set.add(i));
+    for (int i = 0; i < 1000; i += 2) assertTrue(set.remove(i));
+
+    assertEquals(500, set.size());
+    for (int i = 0; i < 1000; i++) assertEquals(i % 2 == 1, set.contains(i));
+  }
+}
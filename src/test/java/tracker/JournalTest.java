@@ -0,0 +1,214 @@
+package tracker;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+public class JournalTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test public void recordOfTheLongestNameIsLoaded() throws IOException {
+    char[] name = new char[0xFFFF];
+    Arrays.fill(name, 'a');
+    Path path = journalOf(frame(new Journal.Record(1, 5, new String(name))), frame(new Journal.Record(2, 6, "b")));
+
+    try (Journal journal = open(path)) {
+      assertTrue(journal.contains(1));
+      assertTrue(journal.contains(2));
+      assertEquals(Arrays.asList(0xFFFF, 1), namesLengths(journal));
+    }
+  }
+
+  @Test public void tornTailIsCutOff() throws IOException {
+    byte[] first = frame(new Journal.Record(1, 5, "a"));
+    byte[] second = frame(new Journal.Record(2, 6, "b"));
+    Path path = journalOf(first, second, Arrays.copyOf(frame(new Journal.Record(3, 7, "c")), 10));
+
+    try (Journal journal = open(path)) {
+      assertEquals(first.length + second.length, Files.size(path));
+      assertTrue(journal.contains(2));
+      assertFalse(journal.contains(3));
+      assertEquals(2, journal.getListing().count);
+    }
+  }
+
+  @Test public void recordsAfterCorruptedOneAreCutOff() throws IOException {
+    byte[] first = frame(new Journal.Record(1, 5, "a"));
+    byte[] second = frame(new Journal.Record(2, 6, "b"));
+    second[second.length - 1] ^= 1;
+    Path path = journalOf(first, second, frame(new Journal.Record(3, 7, "c")));
+
+    try (Journal journal = open(path)) {
+      assertEquals(first.length, Files.size(path));
+      assertTrue(journal.contains(1));
+      assertFalse(journal.contains(2));
+      assertFalse(journal.contains(3));
+    }
+  }
+
+
+  @Test(timeout = 10_000) public void failingListenerDoesntStopWrites() throws IOException {
+    try (Journal journal = open(folder.getRoot().toPath().resolve("journal.bin"))) {
+      journal.subscribe(record -> {
+        throw new IllegalStateException("bad subscriber");
+      });
+      int first = journal.add(1, "a");
+      int second = journal.add(2, "b");
+
+      assertTrue(journal.contains(first));
+      assertTrue(journal.contains(second));
+    }
+  }
+
+  @Test(timeout = 10_000) public void recordWhichCantBeEncodedFailsItsAddOnly() throws IOException {
+    char[] name = new char[30_000];
+    Arrays.fill(name, '\u20AC');  // 3 bytes each in modified UTF-8, too long for writeUTF
+
+    try (Journal journal = open(folder.getRoot().toPath().resolve("journal.bin"))) {
+      try {
+        journal.add(1, new String(name));
+        fail("The name is too long to be encoded");
+      } catch (IOException expected) {
+        // the writer thread is still alive
+      }
+      assertTrue(journal.contains(journal.add(2, "b")));
+    }
+  }
+
+  @Test(timeout = 10_000) public void recordsAddedWhileCompactingAreKept() throws IOException {
+    Path path = folder.getRoot().toPath().resolve("journal.bin");
+    try (Journal journal = new Journal(path, Journal.Durability.WRITE, 10, id -> true)) {
+      for (int i = 0; i < 250; i++) journal.add(i, "file-" + i);
+    }
+
+    try (Journal journal = open(path)) {
+      assertEquals(0, Files.size(path));
+      assertEquals(250, journal.size());
+      assertEquals(ids(0, 249), ids(journal));
+    }
+  }
+
+  @Test(timeout = 10_000) public void filesAreFoundInTheSnapshotAndTheTail() throws IOException {
+    Path path = folder.getRoot().toPath().resolve("journal.bin");
+    try (Journal journal = open(path)) {
+      journal.add(1, "a");
+    }
+
+    try (Journal journal = open(path)) {
+      int added = journal.add(2, "b");
+      assertEquals("a", journal.find(0).name);
+      assertEquals(2, journal.find(added).size);
+      assertNull(journal.find(added + 1));
+    }
+  }
+
+  @Test public void compactionCutByCrashIsFinishedOnOpen() throws IOException {
+    Path path = folder.getRoot().toPath().resolve("journal.bin");
+    try (Journal journal = open(path)) {
+      journal.add(1, "a");
+      journal.add(2, "b");
+    }
+
+    // the snapshot has got 0 and 1, the compacting file is 1..3, the journal is 4 and a torn 5
+    Path compacting = folder.getRoot().toPath().resolve("journal.bin.compacting");
+    Files.write(compacting, concat(frame(new Journal.Record(1, 2, "b")),
+        frame(new Journal.Record(2, 3, "c")), frame(new Journal.Record(3, 4, "d"))));
+    journalOf(frame(new Journal.Record(4, 5, "e")), Arrays.copyOf(frame(new Journal.Record(5, 6, "f")), 10));
+
+    try (Journal journal = open(path)) {
+      assertFalse(Files.exists(compacting));
+      assertEquals(ids(0, 4), ids(journal));
+      assertFalse(journal.contains(5));
+      assertEquals(5, journal.add(6, "f"));
+    }
+
+    try (Journal journal = open(path)) {
+      assertEquals(ids(0, 5), ids(journal));
+    }
+  }
+
+
+  @Test public void tornWritesOfTheSnapshotAndTheJournalAreReplayedOver() throws IOException {
+    Path path = folder.getRoot().toPath().resolve("journal.bin");
+    try (Journal journal = open(path)) {
+      journal.add(1, "a");
+      journal.add(2, "b");
+    }
+
+    // a crash in the middle of the next snapshot, and of an append to the journal after it
+    Path snapshotTmp = folder.getRoot().toPath().resolve("journal.bin.snapshot.tmp");
+    Files.write(snapshotTmp, new byte[]{1, 2, 3});
+    journalOf(frame(new Journal.Record(2, 3, "c")), Arrays.copyOf(frame(new Journal.Record(3, 4, "d")), 7));
+
+    try (Journal journal = open(path)) {
+      assertEquals(ids(0, 2), ids(journal));
+      assertEquals("c", journal.find(2).name);
+      assertEquals(3, journal.add(4, "d"));
+    }
+
+    try (Journal journal = open(path)) {
+      assertFalse(Files.exists(snapshotTmp));
+      assertEquals(0, Files.size(path));
+      assertEquals(ids(0, 3), ids(journal));
+      assertEquals(4, journal.find(3).size);
+    }
+  }
+
+  private Journal open(Path path) throws IOException {
+    return new Journal(path, Journal.Durability.WRITE, 100, id -> true);
+  }
+
+  private Path journalOf(byte[]... frames) throws IOException {
+    return Files.write(folder.getRoot().toPath().resolve("journal.bin"), concat(frames));
+  }
+
+  private static byte[] concat(byte[]... frames) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    for (byte[] frame : frames) bytes.write(frame);
+    return bytes.toByteArray();
+  }
+
+  // <length: Int> <crc: Int> <payload>, as the journal writes a record
+  private static byte[] frame(Journal.Record record) throws IOException {
+    byte[] payload = record.encode();
+    CRC32 crc = new CRC32();
+    crc.update(payload, 0, payload.length);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(payload.length);
+    out.writeInt((int) crc.getValue());
+    out.write(payload);
+    return bytes.toByteArray();
+  }
+
+  private static List<Integer> ids(int from, int to) {
+    List<Integer> ids = new ArrayList<>();
+    for (int id = from; id <= to; id++) ids.add(id);
+    return ids;
+  }
+
+  private static List<Integer> ids(Journal journal) throws IOException {
+    List<Integer> ids = new ArrayList<>();
+    journal.getListing().forEach(record -> ids.add(record.id));
+    return ids;
+  }
+
+  private static List<Integer> namesLengths(Journal journal) throws IOException {
+    List<Integer> lengths = new ArrayList<>();
+    journal.getListing().forEach(record -> lengths.add(record.name.length()));
+    return lengths;
+  }
+}
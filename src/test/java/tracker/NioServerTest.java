@@ -0,0 +1,214 @@
+package tracker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class NioServerTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+  private Journal journal;
+  private Controller controller;
+  private NioServer server;
+  private final CountDownLatch isWritable = new CountDownLatch(1);
+
+  @Before public void setUp() throws IOException {
+    journal = new Journal(folder.getRoot().toPath().resolve("journal.bin"), Journal.Durability.WRITE, 100, id -> true);
+    controller = new Controller(journal, ShardMap.single(), null);
+    start(Admission.unlimited());
+  }
+
+  @After public void tearDown() throws IOException {
+    isWritable.countDown();
+    server.close();
+    journal.close();
+  }
+
+  @Test(timeout = 10_000) public void requestSentByteByByteIsAnsweredOnce() throws IOException, InterruptedException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream upload = new DataOutputStream(bytes);
+    upload.writeByte(2);
+    upload.writeUTF("movie.mkv");
+    upload.writeLong(42);
+
+    try (Socket client = connect()) {
+      client.setTcpNoDelay(true);
+      for (byte b : bytes.toByteArray()) {
+        client.getOutputStream().write(b);
+        Thread.sleep(5);  // every byte is a read of its own
+      }
+      assertEquals(0, new DataInputStream(client.getInputStream()).readInt());
+    }
+
+    try (Socket client = connect()) {
+      client.getOutputStream().write(1);
+      DataInputStream list = new DataInputStream(client.getInputStream());
+      assertEquals(1, list.readInt());
+      assertEquals(0, list.readInt());
+      assertEquals("movie.mkv", list.readUTF());
+      assertEquals(42, list.readLong());
+    }
+  }
+
+  @Test(timeout = 10_000) public void blockedUploadDoesntStallTheSelector() throws IOException {
+    holdWrites();
+
+    try (Socket uploader = connect(); Socket other = connect()) {
+      DataOutputStream upload = new DataOutputStream(uploader.getOutputStream());
+      upload.writeByte(2);
+      upload.writeUTF("a");
+      upload.writeLong(1);
+
+      // the only selector thread answers the other client while the upload waits for its commit
+      other.getOutputStream().write(10);
+      DataInputStream replication = new DataInputStream(other.getInputStream());
+      assertFalse(replication.readBoolean());  // not a follower
+      assertTrue(replication.readBoolean());
+
+      isWritable.countDown();
+      assertEquals(0, new DataInputStream(uploader.getInputStream()).readInt());
+    }
+  }
+
+  @Test(timeout = 10_000) public void keepAliveResponsesKeepTheOrderOfRequests() throws IOException {
+    try (Socket client = connect()) {
+      ByteArrayOutputStream requests = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(requests);
+      out.writeByte(Controller.KEEP_ALIVE);
+      writeFrame(out, frame -> {
+        frame.writeByte(2);
+        frame.writeUTF("a");
+        frame.writeLong(1);
+      });
+      writeFrame(out, frame -> frame.writeByte(9));
+      writeFrame(out, frame -> {
+        frame.writeByte(6);
+        frame.writeInt(0);
+      });
+      client.getOutputStream().write(requests.toByteArray());  // all at once, the upload runs on a worker
+
+      DataInputStream in = new DataInputStream(client.getInputStream());
+      assertEquals(Integer.BYTES, in.readInt());
+      assertEquals(0, in.readInt());
+
+      in.readFully(new byte[in.readInt()]);  // shards
+
+      in.readInt();
+      assertTrue(in.readBoolean());
+      assertEquals("a", in.readUTF());
+    }
+  }
+
+
+  @Test(timeout = 10_000) public void keepAliveConnectionServesFramesSplitAnywhere()
+      throws IOException, InterruptedException {
+    ByteArrayOutputStream requests = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(requests);
+    out.writeByte(Controller.KEEP_ALIVE);
+    writeFrame(out, frame -> {
+      frame.writeByte(2);
+      frame.writeUTF("a");
+      frame.writeLong(1);
+    });
+    byte[] upload = requests.toByteArray();
+
+    try (Socket client = connect()) {
+      client.setTcpNoDelay(true);
+      DataInputStream in = new DataInputStream(client.getInputStream());
+
+      // the keep-alive byte with a half of the length, then the rest
+      client.getOutputStream().write(upload, 0, 3);
+      Thread.sleep(50);
+      client.getOutputStream().write(upload, 3, upload.length - 3);
+      assertEquals(Integer.BYTES, in.readInt());
+      assertEquals(0, in.readInt());
+
+      // the connection stays open for the next request
+      DataOutputStream lookup = new DataOutputStream(client.getOutputStream());
+      writeFrame(lookup, frame -> {
+        frame.writeByte(6);
+        frame.writeInt(0);
+      });
+      in.readInt();
+      assertTrue(in.readBoolean());
+      assertEquals("a", in.readUTF());
+    }
+  }
+
+  @Test(timeout = 10_000) public void connectionAboveTheLimitGetsTheBusyFrame() throws IOException {
+    server.close();
+    start(new Admission(1, 0, 0));
+
+    try (Socket admitted = connect(); Socket rejected = connect()) {
+      // a keep-alive connection holds its place, an answer tells it's been admitted
+      DataOutputStream out = new DataOutputStream(admitted.getOutputStream());
+      out.writeByte(Controller.KEEP_ALIVE);
+      writeFrame(out, frame -> frame.writeByte(10));
+      DataInputStream in = new DataInputStream(admitted.getInputStream());
+      in.readFully(new byte[in.readInt()]);
+
+      DataInputStream busy = new DataInputStream(rejected.getInputStream());
+      assertEquals(Admission.BUSY, busy.readInt());
+      assertTrue(busy.readInt() > 0);
+      assertEquals(-1, busy.read());
+    }
+  }
+
+  @Test(timeout = 10_000) public void stalledRequestIsClosed() throws IOException {
+    server.close();
+    start(new Admission(10, 200, 0));
+
+    try (Socket client = connect()) {
+      client.getOutputStream().write(new byte[]{2, 0});  // an upload stops in the middle of the name
+      assertEquals(-1, client.getInputStream().read());
+    }
+  }
+
+
+  private void start(Admission admission) throws IOException {
+    server = new NioServer(controller, 0, 1, Executors.newCachedThreadPool(), admission);
+
+    Thread listener = new Thread(server::listen, "listener");
+    listener.setDaemon(true);
+    listener.start();
+  }
+
+  // the journal writer waits in a listener, so uploads wait for their commit
+  private void holdWrites() {
+    journal.subscribe(record -> {
+      try {
+        isWritable.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+  }
+
+  private Socket connect() throws IOException {
+    return new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+  }
+
+  private static void writeFrame(DataOutputStream out, FrameWriter writer) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    writer.write(new DataOutputStream(bytes));
+    out.writeInt(bytes.size());
+    out.write(bytes.toByteArray());
+  }
+
+  @FunctionalInterface
+  private interface FrameWriter {
+    void write(DataOutputStream frame) throws IOException;
+  }
+}
@@ -0,0 +1,72 @@
+package tracker;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.Assert.*;
+
+public class SnapshotTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test public void valuesAcrossSegmentsAreRead() throws IOException {
+    Path path = folder.getRoot().toPath().resolve("journal.bin.snapshot");
+    Snapshot first = write(path, Snapshot.EMPTY, 1, 40);
+    write(path, first, 41, 90);
+
+    // neither the index entries nor the records are aligned to 7 bytes
+    Snapshot snapshot = Snapshot.open(path, 7);
+    assertEquals(90, snapshot.count);
+    assertEquals(90, snapshot.lastFileId);
+    for (int id = 1; id <= 90; id++) {
+      assertTrue(snapshot.contains(id));
+      assertEquals("file-" + id, snapshot.find(id).name);
+      assertEquals(id * 10, snapshot.find(id).size);
+    }
+    assertFalse(snapshot.contains(0));
+    assertNull(snapshot.find(91));
+
+    List<String> names = new ArrayList<>();
+    new Journal.Listing(snapshot.count, Arrays.asList(snapshot.records())).forEach(record -> names.add(record.name));
+    assertEquals(90, names.size());
+    assertEquals("file-1", names.get(0));
+    assertEquals("file-90", names.get(89));
+  }
+
+  @Test(expected = IOException.class)
+  public void countWhichOverflowsIntOffsetsIsRejected() throws IOException {
+    Path path = folder.getRoot().toPath().resolve("journal.bin.snapshot");
+    write(path, Snapshot.EMPTY, 1, 3);
+
+    try (FileChannel channel = FileChannel.open(path, WRITE)) {
+      channel.write(ByteBuffer.allocate(Integer.BYTES).putInt(0, 200_000_000), Integer.BYTES);
+    }
+    Snapshot.open(path);
+  }
+
+
+  // records of ids from..to appended to the previous snapshot
+  private static Snapshot write(Path path, Snapshot previous, int from, int to) throws IOException {
+    List<Journal.Record> records = new ArrayList<>();
+    int[] offsets = new int[to - from + 1];
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    for (int id = from; id <= to; id++) {
+      Journal.Record record = new Journal.Record(id, id * 10, "file-" + id);
+      records.add(record);
+      offsets[id - from] = bytes.size();
+      bytes.write(record.encode(), 0, record.encode().length);
+    }
+    return Snapshot.write(path, previous, records, offsets, bytes.toByteArray(), bytes.size());
+  }
+}
@@ -0,0 +1,52 @@
+package tracker;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TimingWheelTest {
+  @Test public void itemsExpireAtTheirDeadlinesOnEveryLevel() {
+    TimingWheel wheel = new TimingWheel(3, 100);
+    long[] deadlines = {101, 163, 164, 165, 100 + 64 * 64 - 1, 100 + 64 * 64, 100 + 3 * 64 * 64 + 7};
+    for (long deadline : deadlines) wheel.schedule(deadline, deadline);
+
+    // each item is its deadline, so it must be seen on that very tick
+    for (long tick = 101; tick <= 100 + 4 * 64 * 64; tick++) {
+      long now = tick;
+      wheel.advance(tick, item -> assertEquals("expired on " + now, now, item));
+    }
+
+    List<Long> expired = new ArrayList<>();
+    wheel.advance(1 << 20, expired::add);
+    assertEquals(Collections.emptyList(), expired);
+  }
+
+  @Test public void overdueItemExpiresOnTheNextTick() {
+    TimingWheel wheel = new TimingWheel(2, 1000);
+    wheel.schedule(7, 10);
+
+    List<Long> expired = new ArrayList<>();
+    wheel.advance(1000, expired::add);
+    assertEquals(Collections.emptyList(), expired);
+    wheel.advance(1001, expired::add);
+    assertEquals(Collections.singletonList(7L), expired);
+  }
+
+  @Test public void consumerMayScheduleTheItemAgain() {
+    TimingWheel wheel = new TimingWheel(2, 0);
+    wheel.schedule(1, 10);
+
+    List<Long> expired = new ArrayList<>();
+    wheel.advance(10, item -> {
+      expired.add(item);
+      wheel.schedule(item + 1, 20);
+    });
+    wheel.advance(20, expired::add);
+    assertEquals(Arrays.asList(1L, 2L), expired);
+  }
+}
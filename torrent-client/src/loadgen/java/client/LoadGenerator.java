@@ -0,0 +1,325 @@
+package client;
+
+import client.Operations.Sources;
+import client.Operations.TrackerConnection;
+import client.Operations.UdpTracker;
+import client.Operations.Update;
+import client.Operations.Upload;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Synthetic swarm load of a tracker on loopback, made by the codecs of the client:
+ * <pre>
+ *   ./gradlew loadgen -PloadgenArgs="--clients=10000 --sources-rate=2000"
+ *   --tracker=127.0.0.1:8081   the tracker under load
+ *   --clients=1000             virtual clients, each one announces its files every --announce-every=300 seconds
+ *   --files=10                 files of a client, chosen by popularity
+ *   --catalog=10000            files uploaded before the run
+ *   --zipf=1.0                 skew of popularity, the k-th file is chosen with weight 1 / k^zipf
+ *   --sources-rate=1000        sources requests per second, of files chosen by popularity
+ *   --upload-rate=1            uploads of new files per second
+ *   --max-peers=50             seeds asked by a sources request
+ *   --connections=16           keep-alive connections, a worker thread each
+ *   --udp=P                    announces and sources go to the UDP port P of the tracker, uploads stay on TCP
+ *   --seconds=60 --seed=1      length of the run and the seed of all random choices
+ * </pre>
+ * The load is open: requests are scheduled at fixed rates whatever the tracker does, and the latency of a request
+ * is counted from the moment it was scheduled, so a stalled tracker shows up in percentiles instead of being hidden.
+ * Virtual clients differ by the port they announce, the tracker sees them all at 127.0.0.1.
+ */
+public class LoadGenerator {
+  private static final int FIRST_CLIENT_PORT = 10_000;
+  private static final int REPORT_EVERY_SECONDS = 10;
+
+  private final String host;
+  private final short port;
+  private final int numOfClients;
+  private final int filesPerClient;
+  private final double zipf;
+  private final int maxPeers;
+  private final short udpPort;  // 0 if everything goes over TCP
+  private final Random random;
+
+  private final BlockingQueue<Task> queue = new LinkedBlockingQueue<>();
+  private final Map<String, Stats> stats = new LinkedHashMap<>();
+  private int[] catalog;      // ids by popularity, the first one is the most popular
+  private double[] weights;   // cumulative, of the catalog
+  private int[][] filesOfClient;
+  private final AtomicInteger numOfUploads = new AtomicInteger();
+
+
+  private LoadGenerator(Map<String, String> options) {
+    String[] tracker = options.getOrDefault("tracker", "127.0.0.1:8081").split(":");
+    this.host = tracker[0];
+    this.port = Short.parseShort(tracker[1]);
+    this.numOfClients = Integer.parseInt(options.getOrDefault("clients", "1000"));
+    this.filesPerClient = Integer.parseInt(options.getOrDefault("files", "10"));
+    this.zipf = Double.parseDouble(options.getOrDefault("zipf", "1.0"));
+    this.maxPeers = Integer.parseInt(options.getOrDefault("max-peers", "50"));
+    this.udpPort = Short.parseShort(options.getOrDefault("udp", "0"));
+    this.random = new Random(Long.parseLong(options.getOrDefault("seed", "1")));
+
+    if (numOfClients > Short.MAX_VALUE * 2 + 1 - FIRST_CLIENT_PORT) throw new IllegalArgumentException("Too many clients");
+    for (String operation : new String[]{"announce", "sources", "upload"}) stats.put(operation, new Stats());
+  }
+
+  public static void main(String... args) throws Exception {
+    Map<String, String> options = new HashMap<>();
+    for (String arg : args) {
+      String[] option = arg.replaceFirst("^--", "").split("=", 2);
+      options.put(option[0], option.length > 1 ? option[1] : "true");
+    }
+
+    new LoadGenerator(options).run(
+        Integer.parseInt(options.getOrDefault("catalog", "10000")),
+        Integer.parseInt(options.getOrDefault("connections", "16")),
+        Integer.parseInt(options.getOrDefault("announce-every", "300")),
+        Double.parseDouble(options.getOrDefault("sources-rate", "1000")),
+        Double.parseDouble(options.getOrDefault("upload-rate", "1")),
+        Integer.parseInt(options.getOrDefault("seconds", "60")));
+  }
+
+  private void run(int catalogSize, int numOfConnections, int announceEvery, double sourcesRate, double uploadRate,
+                   int seconds) throws Exception {
+    List<TrackerConnection> connections = new ArrayList<>();
+    List<UdpTracker> udps = new ArrayList<>();  // nulls if everything goes over TCP
+    for (int i = 0; i < numOfConnections; i++) {
+      connections.add(new TrackerConnection(host, port));
+      udps.add(udpPort == 0 ? null : new UdpTracker(host, udpPort));
+    }
+    ExecutorService workers = Executors.newFixedThreadPool(numOfConnections);
+    ScheduledExecutorService pacer = Executors.newSingleThreadScheduledExecutor();
+
+    try {
+      prepare(connections, udps, catalogSize);
+      for (Stats operation : stats.values()) operation.reset();
+
+      for (int i = 0; i < numOfConnections; i++) {
+        TrackerConnection connection = connections.get(i);
+        UdpTracker udp = udps.get(i);
+        workers.submit(() -> work(connection, udp));
+      }
+      AtomicInteger nextClient = new AtomicInteger();
+      schedule(pacer, (double) numOfClients / announceEvery,
+          () -> new Task("announce", announce(nextClient.getAndIncrement() % numOfClients)));
+      schedule(pacer, sourcesRate, () -> new Task("sources", sources(popularFile(random))));
+      schedule(pacer, uploadRate, () -> new Task("upload", upload()));
+
+      long start = System.nanoTime();
+      for (int elapsed = 0; elapsed < seconds; ) {
+        int pause = Math.min(REPORT_EVERY_SECONDS, seconds - elapsed);
+        TimeUnit.SECONDS.sleep(pause);
+        elapsed += pause;
+        System.out.printf("%d s, %d requests are queued%n", elapsed, queue.size());
+      }
+
+      pacer.shutdownNow();
+      while (!queue.isEmpty() && System.nanoTime() - start < TimeUnit.SECONDS.toNanos(seconds + 10)) Thread.sleep(10);
+      report(System.nanoTime() - start);
+    } finally {
+      pacer.shutdownNow();
+      workers.shutdownNow();
+      for (TrackerConnection connection : connections) connection.close();
+      for (UdpTracker udp : udps) {
+        if (udp != null) udp.close();
+      }
+    }
+  }
+
+  // the catalog is uploaded and every client announces once, so swarms are full from the start
+  // and both the tracker and the generator are warmed up on the transport that is measured
+  private void prepare(List<TrackerConnection> connections, List<UdpTracker> udps, int catalogSize) throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(connections.size());
+    try {
+      List<Future<Integer>> uploads = new ArrayList<>();
+      for (int i = 0; i < catalogSize; i++) {
+        TrackerConnection connection = connections.get(i % connections.size());
+        String name = "loadgen-" + i + ".bin";
+        uploads.add(pool.submit(() -> Upload.makeRequest(connection, name, 1 << 20).fileId));
+      }
+
+      catalog = new int[catalogSize];
+      for (int i = 0; i < catalogSize; i++) catalog[i] = uploads.get(i).get();
+      shuffle(catalog);  // popularity doesn't follow the order of ids
+
+      weights = new double[catalogSize];
+      double sum = 0;
+      for (int rank = 0; rank < catalogSize; rank++) weights[rank] = sum += 1 / Math.pow(rank + 1, zipf);
+
+      filesOfClient = new int[numOfClients][];
+      for (int client = 0; client < numOfClients; client++) {
+        Set<Integer> files = new LinkedHashSet<>();
+        while (files.size() < Math.min(filesPerClient, catalogSize)) files.add(popularFile(random));
+        filesOfClient[client] = files.stream().mapToInt(Integer::intValue).toArray();
+      }
+
+      List<Future<?>> announces = new ArrayList<>();
+      for (int client = 0; client < numOfClients; client++) {
+        TrackerConnection connection = connections.get(client % connections.size());
+        UdpTracker udp = udps.get(client % udps.size());
+        Request request = announce(client);
+        announces.add(pool.submit(() -> {
+          request.send(connection, udp);
+          return null;
+        }));
+      }
+      for (Future<?> announce : announces) announce.get();
+      System.out.printf("%d files are uploaded, %d clients announced%n", catalogSize, numOfClients);
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private void schedule(ScheduledExecutorService pacer, double perSecond, Callable<Task> task) {
+    if (perSecond <= 0) return;
+    long periodNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / perSecond));
+    pacer.scheduleAtFixedRate(() -> {
+      try {
+        queue.add(task.call());
+      } catch (Exception err) {
+        throw new IllegalStateException(err);
+      }
+    }, 0, periodNanos, TimeUnit.NANOSECONDS);
+  }
+
+  private void work(TrackerConnection connection, UdpTracker udp) {
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        Task task = queue.take();
+        Stats operation = stats.get(task.operation);
+        try {
+          task.request.send(connection, udp);
+          operation.record(System.nanoTime() - task.scheduledAt);
+        } catch (IOException err) {
+          operation.errors.increment();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private Request announce(int client) {
+    short clientPort = (short) (FIRST_CLIENT_PORT + client);
+    return (tcp, udp) -> {
+      if (udp != null) Update.makeRequest(udp, clientPort, filesOfClient[client]);
+      else Update.makeRequest(tcp, clientPort, filesOfClient[client]);
+    };
+  }
+
+  private Request sources(int fileId) {
+    return (tcp, udp) -> {
+      if (udp != null) Sources.makeRequest(udp, fileId, maxPeers);
+      else Sources.makeRequest(tcp, fileId, maxPeers);
+    };
+  }
+
+  private Request upload() {
+    String name = "loadgen-new-" + numOfUploads.incrementAndGet() + ".bin";
+    return (tcp, udp) -> Upload.makeRequest(tcp, name, 1 << 20);
+  }
+
+  // the rank is found by the cumulative weights, so the choice costs log(catalog)
+  private int popularFile(Random random) {
+    double point = random.nextDouble() * weights[weights.length - 1];
+    int rank = Arrays.binarySearch(weights, point);
+    return catalog[rank < 0 ? -rank - 1 : rank];
+  }
+
+  private void shuffle(int[] ids) {
+    for (int i = ids.length - 1; i > 0; i--) {
+      int j = random.nextInt(i + 1);
+      int id = ids[i];
+      ids[i] = ids[j];
+      ids[j] = id;
+    }
+  }
+
+  private void report(long elapsedNanos) {
+    double seconds = elapsedNanos / 1e9;
+    System.out.printf("%n%-10s %10s %10s %8s %10s %10s %10s %10s%n",
+        "operation", "requests", "req/s", "errors", "p50 us", "p99 us", "p999 us", "max us");
+    stats.forEach((name, operation) -> System.out.printf("%-10s %10d %10.0f %8d %10d %10d %10d %10d%n",
+        name, operation.count(), operation.count() / seconds, operation.errors.sum(),
+        operation.percentileMicros(0.5), operation.percentileMicros(0.99), operation.percentileMicros(0.999),
+        operation.percentileMicros(1)));
+  }
+
+
+  // udp is null when everything goes over TCP
+  @FunctionalInterface
+  private interface Request {
+    void send(TrackerConnection tcp, UdpTracker udp) throws IOException;
+  }
+
+  private static class Task {
+    final String operation;
+    final Request request;
+    final long scheduledAt = System.nanoTime();
+
+    Task(String operation, Request request) {
+      this.operation = operation;
+      this.request = request;
+    }
+  }
+
+  /**
+   * Latencies in microseconds by log-linear buckets: exact below 16 us, then 8 buckets per doubling.
+   */
+  private static class Stats {
+    private static final int EXACT = 16;
+    private static final int SUB_BITS = 3;
+    private static final int MIN_EXPONENT = 4;   // of EXACT
+    private static final int MAX_EXPONENT = 40;  // longer ones fall into the last bucket
+    private static final int BUCKETS = EXACT + ((MAX_EXPONENT - MIN_EXPONENT) << SUB_BITS);
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    final LongAdder errors = new LongAdder();
+
+    void record(long nanos) {
+      long micros = Math.max(0, nanos / 1000);
+      int bucket;
+      if (micros < EXACT) {
+        bucket = (int) micros;
+      } else {
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (exponent - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+        bucket = Math.min(EXACT + ((exponent - MIN_EXPONENT) << SUB_BITS) + sub, BUCKETS - 1);
+      }
+      counts.incrementAndGet(bucket);
+    }
+
+    long count() {
+      long count = 0;
+      for (int i = 0; i < BUCKETS; i++) count += counts.get(i);
+      return count;
+    }
+
+    // the upper bound of the bucket
+    long percentileMicros(double quantile) {
+      long rank = (long) Math.ceil(quantile * count());
+      long seen = 0;
+      for (int bucket = 0; bucket < BUCKETS; bucket++) {
+        seen += counts.get(bucket);
+        if (seen >= rank && seen > 0) {
+          if (bucket < EXACT) return bucket;
+          int exponent = ((bucket - EXACT) >> SUB_BITS) + MIN_EXPONENT;
+          int sub = (bucket - EXACT) & ((1 << SUB_BITS) - 1);
+          return (1L << exponent) + ((sub + 1L) << (exponent - SUB_BITS)) - 1;
+        }
+      }
+      return 0;
+    }
+
+    void reset() {
+      for (int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+      errors.reset();
+    }
+  }
+}
@@ -21,7 +21,7 @@ public class BlocksSet implements Iterable<Integer> {
 
 
   public BlocksSet invert() {
-    Set<Integer> set = IntStream.range(0, totalNumber).filter(indexes::contains).boxed().collect(Collectors.toSet());
+    Set<Integer> set = IntStream.range(0, totalNumber).filter(idx -> !indexes.contains(idx)).boxed().collect(Collectors.toSet());
     return new BlocksSet(set, totalNumber);
   }
 
@@ -1,6 +1,7 @@
 package client;
 
 import client.Operations.*;
+import common.TaskExecutors;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,11 +13,16 @@ import java.lang.reflect.Method;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Scanner;
+import java.util.Set;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import static java.util.concurrent.Executors.newScheduledThreadPool;
@@ -26,16 +32,20 @@ public class Cli implements Closeable {
   private static final String SERVER_IP = "127.0.0.1";
   private static final short SERVER_PORT = 8081;
   private static short PORT_TO_BIND = 8080;
+  private static final int SEARCH_PAGE_SIZE = 100;
 
   private final LocalFiles localFiles;
   private final LocalServer localServer;
+  private final TrackerCluster tracker;
   private final ScheduledExecutorService timer = newScheduledThreadPool(1);
+  private volatile Set<Integer> announced;  // files the tracker knows about, null if all of them should be sent
   // todo: После скачивания отдельных блоков некоторого файла клиент становится сидом.
 
 
-  public Cli(LocalFiles localFiles, LocalServer localServer, DownloadManager manager) {
+  public Cli(LocalFiles localFiles, LocalServer localServer, DownloadManager manager, TrackerCluster tracker) {
     this.localFiles = localFiles;
     this.localServer = localServer;
+    this.tracker = tracker;
     timer.scheduleAtFixedRate(onTimerWakeUp(), 0, 30, TimeUnit.SECONDS);
   }
 
@@ -43,21 +53,33 @@ public class Cli implements Closeable {
     log.info("Cli shutdown");
     timer.shutdown();
     localServer.close();
+    tracker.close();
   }
 
 
+  // client.sh <port> [--executor=pool|virtual] [--window=N] [--udp=PORT]
   public static void main(String... args) throws InvocationTargetException, IllegalAccessException, IOException {
     if (args.length == 0) {
-      System.out.println("Port argument required:  client.sh <port>");
+      System.out.println("Port argument required:  " +
+          "client.sh <port> [--executor=pool|virtual] [--window=N] [--udp=PORT]");
       System.out.println("  default value " + PORT_TO_BIND + " will be used");
     } else {
       PORT_TO_BIND = Short.parseShort(args[0]);
     }
+    String executor = "pool";
+    int window = PeerConnection.DEFAULT_WINDOW;  // gets in flight through a session with a seed
+    short udpPort = 0;  // of the tracker, announces and sources go over TCP only if it's not given
+    for (int i = 1; i < args.length; i++) {
+      if (args[i].startsWith("--executor=")) executor = args[i].substring(11);
+      if (args[i].startsWith("--window=")) window = Integer.parseInt(args[i].substring(9));
+      if (args[i].startsWith("--udp=")) udpPort = Short.parseShort(args[i].substring(6));
+    }
 
     LocalFiles localFiles = new LocalFiles(Paths.get("blocks"), Paths.get("downloads"));
-    LocalServer localServer = new LocalServer(localFiles, PORT_TO_BIND);
-    DownloadManager manager = new DownloadManager(localFiles, SERVER_IP, SERVER_PORT);
-    new Cli(localFiles, localServer, manager).repl();
+    LocalServer localServer = new LocalServer(localFiles, PORT_TO_BIND, TaskExecutors.newExecutor(executor));
+    TrackerCluster tracker = new TrackerCluster(SERVER_IP, SERVER_PORT, udpPort);
+    DownloadManager manager = new DownloadManager(localFiles, tracker, window);
+    new Cli(localFiles, localServer, manager, tracker).repl();
   }
 
   private void repl() throws InvocationTargetException, IllegalAccessException {
@@ -112,7 +134,7 @@ public class Cli implements Closeable {
 
   @Verb(doc = "             - list of all files on the server")
   private void list(String[] args) throws IOException {
-    List.Response response = List.makeRequest(SERVER_IP, SERVER_PORT);
+    List.Response response = List.makeRequest(tracker);
 
     for (List.Response.File file : response.files) {
       System.out.printf("%-3s %14s  %-6s\n", file.id + ":", file.name, humanReadable(file.size));
@@ -122,6 +144,26 @@ public class Cli implements Closeable {
   }
 
 
+  @Verb(doc = "<text>      - files on the server whose names contain the text")
+  private void search(String[] args) throws IOException {
+    if (args.length != 2) {
+      System.out.println("Usage: search <text>");
+      return;
+    }
+
+    int cursor = -1;
+    do {
+      Search.Response response = Search.makeRequest(tracker, args[1], false, cursor, SEARCH_PAGE_SIZE);
+      for (List.Response.File file : response.files) {
+        System.out.printf("%-3s %14s  %-6s\n", file.id + ":", file.name, humanReadable(file.size));
+      }
+      cursor = response.nextCursor;
+    } while (cursor != -1);
+
+    System.out.println();
+  }
+
+
   @Verb(doc = "<filePath> - publish file on the server")
   private void upload(String[] args) throws IOException {
     if (args.length != 2) {
@@ -137,7 +179,7 @@ public class Cli implements Closeable {
 
     String fileName = path.getFileName().toString();
     long fileSize = path.toFile().length();
-    Upload.Response response = Upload.makeRequest(SERVER_IP, SERVER_PORT, fileName, fileSize);
+    Upload.Response response = Upload.makeRequest(tracker.any(), fileName, fileSize);
 
     localFiles.addAsExisting(response.fileId, path);
     System.out.println("Published, fileId is " + response.fileId + "\n");
@@ -157,13 +199,11 @@ public class Cli implements Closeable {
       return;
     }
 
-    List.Response listResponse = List.makeRequest(SERVER_IP, SERVER_PORT);
-    for (List.Response.File remoteFile : listResponse.files) {
-      if (remoteFile.id == fileId) {
-        localFiles.addEmpty(fileId, remoteFile.size, remoteFile.name);
-        System.out.println("ok");
-        return;
-      }
+    List.Response.File remoteFile = Lookup.makeRequest(tracker.ownerOf(fileId), fileId).file;
+    if (remoteFile != null) {
+      localFiles.addEmpty(fileId, remoteFile.size, remoteFile.name);
+      System.out.println("ok");
+      return;
     }
 
     System.out.printf("There is no file with %d id on the tracker", fileId);
@@ -208,7 +248,7 @@ public class Cli implements Closeable {
     }
 
     int fileId = Integer.parseInt(args[1]);
-    Sources.Response response = Sources.makeRequest(SERVER_IP, SERVER_PORT, fileId);
+    Sources.Response response = Sources.makeRequest(tracker.ownerOf(fileId), fileId);
 
     if (response.seeds.size() == 0) {
       System.out.println("There is no seeds");
@@ -229,9 +269,14 @@ public class Cli implements Closeable {
     }
 
     args = args[1].split("\\s+");
-    int[] fileIds = Stream.of(args).mapToInt(Integer::parseInt).toArray();
-    Update.Response response = Update.makeRequest(SERVER_IP, SERVER_PORT, PORT_TO_BIND, fileIds);
-    System.out.println(response.isOk ? "ok" : "failed");
+    Set<Integer> fileIds = Stream.of(args).map(Integer::parseInt).collect(Collectors.toSet());
+    boolean isOk = true;
+    for (Map.Entry<TrackerConnection, Set<Integer>> node : tracker.partition(fileIds).entrySet()) {
+      isOk &= Update.makeRequest(tracker, node.getKey(), PORT_TO_BIND,
+          difference(node.getValue(), Collections.emptySet())).isOk;
+    }
+    announced = null;
+    System.out.println(isOk ? "ok" : "failed");
     System.out.println();
   }
 
@@ -242,20 +287,59 @@ public class Cli implements Closeable {
   }
 
 
-  // call update
+  // call update, or send just the changes if the tracker knows the rest; each node of a cluster gets its own files,
+  // then hints: free upload slots and how much of each partly downloaded file is here
   @NotNull private Runnable onTimerWakeUp() {
     return () -> {
       try {
-        int[] existingFileIds = this.localFiles.getStats().stream()
+        Collection<FileStats> stats = this.localFiles.getStats();
+        Set<Integer> existingFileIds = stats.stream()
             .filter(s -> s.loadedBlocks.isNotEmpty())
-            .mapToInt(s -> s.fileId).toArray();
+            .map(s -> s.fileId).collect(Collectors.toSet());
+        Map<Integer, Integer> partial = stats.stream()
+            .filter(s -> existingFileIds.contains(s.fileId) && s.completedPercent() < 100)
+            .collect(Collectors.toMap(s -> s.fileId, FileStats::completedPercent));
+        int freeSlots = localServer.freeSlots();
+
+        Set<Integer> known = announced;
+        Map<TrackerConnection, Set<Integer>> removed =
+            tracker.partition(known == null ? Collections.emptySet() : toSet(difference(known, existingFileIds)));
+
+        boolean isOk = true;
+        for (Map.Entry<TrackerConnection, Set<Integer>> node : tracker.partition(existingFileIds).entrySet()) {
+          TrackerConnection nodeTracker = node.getKey();
+          Set<Integer> shared = node.getValue();
+
+          boolean isNodeOk = known != null && DeltaUpdate.makeRequest(tracker, nodeTracker, PORT_TO_BIND,
+              difference(shared, known), difference(removed.get(nodeTracker), Collections.emptySet())).isOk;
+          if (!isNodeOk) {
+            isNodeOk = Update.makeRequest(tracker, nodeTracker, PORT_TO_BIND,
+                difference(shared, Collections.emptySet())).isOk;
+          }
+          if (isNodeOk) {
+            Map<Integer, Integer> nodePartial = new HashMap<>(partial);
+            nodePartial.keySet().retainAll(shared);
+            isNodeOk = Hints.makeRequest(tracker, nodeTracker, PORT_TO_BIND, freeSlots, nodePartial).isOk;
+          }
+          isOk &= isNodeOk;
+        }
 
-        boolean isOk = Update.makeRequest(SERVER_IP, SERVER_PORT, PORT_TO_BIND, existingFileIds).isOk;
+        announced = isOk ? existingFileIds : null;
         log.debug("Updated, {}", isOk);
-      } catch (Exception e) {}
+      } catch (Exception e) {
+        announced = null;
+      }
     };
   }
 
+  private static int[] difference(Set<Integer> from, Set<Integer> exclude) {
+    return from.stream().filter(id -> !exclude.contains(id)).mapToInt(Integer::intValue).toArray();
+  }
+
+  private static Set<Integer> toSet(int[] ids) {
+    return IntStream.of(ids).boxed().collect(Collectors.toSet());
+  }
+
   private static String humanReadable(long bytes) {
     int unit = 1024;
     if (bytes < unit) return bytes + " B";
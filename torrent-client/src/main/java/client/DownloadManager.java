@@ -1,17 +1,17 @@
 package client;
 
 import client.Operations.Get;
+import client.Operations.PeerConnection;
 import client.Operations.Sources;
 import client.Operations.Sources.Response.Seed;
 import client.Operations.Stat;
-import client.Operations.Stat.Response;
-import org.apache.commons.io.IOUtils;
+import client.Operations.TrackerCluster;
+import client.Operations.TrackerConnection;
 
-import java.io.ByteArrayInputStream;
 import java.io.Closeable;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.nio.channels.Channels;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.util.*;
@@ -19,24 +19,40 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static client.LocalFiles.BLOCK_SIZE;
 import static java.nio.file.StandardOpenOption.WRITE;
 import static java.util.concurrent.Executors.newFixedThreadPool;
 import static java.util.concurrent.Executors.newScheduledThreadPool;
 
+/**
+ * Loads missing blocks of up to 4 files at once. Blocks of a file are asked from its seeds one by one,
+ * all the ones a seed has are pipelined through a session with it, see {@link PeerConnection}.
+ * Sessions are kept open between the files and the timer ticks.
+ */
 public class DownloadManager implements Closeable {
+  private static final int MAX_PEERS = 50;  // a random part of the swarm is enough to find a block
+  private static final int MAX_FILES = 4;  // loaded at once, by a thread each
   private final ScheduledExecutorService timer = newScheduledThreadPool(1);
-  private final ExecutorService pool = newFixedThreadPool(4);
-  private final Set<Task> inProgress = concurrentHashSet();
+  private final ExecutorService pool = newFixedThreadPool(MAX_FILES);
+  private final Set<Integer> inProgress = concurrentHashSet();
+  private final Map<InetSocketAddress, PeerConnection> peers = new ConcurrentHashMap<>();
   private final LocalFiles localFiles;
-  private final String serverIp;
-  private final short serverPort;
+  private final TrackerCluster tracker;
+  private final int window;
 
-  public DownloadManager(LocalFiles localFiles, String serverIp, short serverPort) {
+  public DownloadManager(LocalFiles localFiles, TrackerCluster tracker) {
+    this(localFiles, tracker, PeerConnection.DEFAULT_WINDOW);
+  }
+
+  /**
+   * <tt>window</tt> is how many gets may be in flight through a session at once.
+   */
+  public DownloadManager(LocalFiles localFiles, TrackerCluster tracker, int window) {
     this.localFiles = localFiles;
-    this.serverPort = serverPort;
-    this.serverIp = serverIp;
+    this.tracker = tracker;
+    this.window = window;
     timer.scheduleAtFixedRate(this::onTimer, 0, 500, TimeUnit.MILLISECONDS);
   }
 
@@ -44,101 +60,100 @@ public class DownloadManager implements Closeable {
   public void close() {
     pool.shutdown();
     timer.shutdown();
-  }
-
-  class Task {
-    int fileId;
-    int blockId;
-
-    public Task(int fileId, int blockId) {
-      this.fileId = fileId;
-      this.blockId = blockId;
-    }
+    peers.values().forEach(DownloadManager::closeQuietly);
   }
 
   private void onTimer() {
     try {
-      Set<Task> tasks = new HashSet<>();
-      Set<Integer> ids = new HashSet<>();
-
-      // load in 4 threads, don't put too much
-      // tasks they may become "outdated"
-      int tasksToAdd = 4 - inProgress.size();
+      Map<Integer, java.util.List<Integer>> tasks = new HashMap<>();
+      Map<Integer, Path> paths = new HashMap<>();
 
-      // take more tasks, if some threads are not busy
-      outer:
+      // a file is loaded by a single thread, the ones in progress are skipped
       for (FileStats stats : localFiles.getStats()) {
-        for (int blockIdx : stats.notLoadedBlocks()) {
-          if (tasksToAdd <= 0) break outer;
-          Task t = new Task(stats.fileId, blockIdx);
-          if (inProgress.contains(t)) continue;
-          tasksToAdd -= 1;
-          tasks.add(t);
-          ids.add(t.fileId);
-        }
+        if (tasks.size() + inProgress.size() >= MAX_FILES) break;
+        if (inProgress.contains(stats.fileId)) continue;
+
+        java.util.List<Integer> blocks = stats.notLoadedBlocks().indexes.stream().sorted().collect(Collectors.toList());
+        if (blocks.isEmpty()) continue;
+        tasks.put(stats.fileId, blocks);
+        paths.put(stats.fileId, stats.absolutePathToOriginal);
       }
 
-      // Collect list of fresh seeds for each fileId
-      Map<Integer, List<Seed>> seeds = new HashMap<>();
-      for (Integer fileId : ids) {
-        seeds.put(fileId, Sources.makeRequest(serverIp, serverPort, fileId).seeds);
+      // Collect list of fresh seeds for each fileId by one batched request to each node which owns some of them
+      Map<Integer, java.util.List<Seed>> seeds = new HashMap<>();
+      for (Map.Entry<TrackerConnection, Set<Integer>> node : tracker.partition(tasks.keySet()).entrySet()) {
+        if (node.getValue().isEmpty()) continue;
+        Sources.makeRequests(tracker, node.getKey(), node.getValue(), MAX_PEERS)
+            .forEach((fileId, response) -> seeds.put(fileId, response.seeds));
       }
 
-      tasks.removeIf(task -> seeds.get(task.fileId).isEmpty());
-      tasks.forEach(task -> pool.submit(new BlockLoader(task, seeds.get(task.fileId))));
+      tasks.keySet().removeIf(fileId -> seeds.getOrDefault(fileId, Collections.emptyList()).isEmpty());
+      tasks.forEach((fileId, blocks) -> pool.submit(new FileLoader(fileId, paths.get(fileId), blocks, seeds.get(fileId))));
     } catch (IOException e) {
     }
   }
 
-  private class BlockLoader implements Runnable {
-    private final List<Seed> seeds;
-    private final Task task;
+  private class FileLoader implements Runnable {
+    private final int fileId;
+    private final Path path;
+    private final Set<Integer> blocks;
+    private final java.util.List<Seed> seeds;
 
-    private BlockLoader(Task task, List<Seed> seeds) {
-      this.task = task;
+    private FileLoader(int fileId, Path path, java.util.List<Integer> blocks, java.util.List<Seed> seeds) {
+      this.fileId = fileId;
+      this.path = path;
+      this.blocks = new LinkedHashSet<>(blocks);
       this.seeds = seeds;
-      inProgress.add(task);
+      inProgress.add(fileId);
     }
 
     @Override
     public void run() {
-      try {
-        Seed seed = null;
-
-        // search the first seed with needed block
-        for (Seed candidate : seeds) {
-          try {
-            Response response = Stat.makeRequest(candidate.ip.getHostAddress(), candidate.port, task.fileId);
-            if (response.blocksIndexes.contains(task.blockId))
-              seed = candidate;
-          } catch (IOException ignored) {}
+      try (FileChannel channel = FileChannel.open(path, WRITE)) {
+        // the tracker gives idle seeds with more of the file first, each one is asked for what's still missing
+        for (Seed seed : seeds) {
+          if (blocks.isEmpty()) break;
+          loadFrom(seed, channel);
         }
+      } catch (IOException ignored) {
+      } finally {
+        inProgress.remove(fileId);
+      }
+    }
 
-        if (seed == null) return;
-
-        try {
-          // get data, write it to our block
-          Get.Response res = Get.makeRequest(seed.ip.getHostAddress(), seed.port, task.fileId, task.blockId, BLOCK_SIZE);
-          Path path = FileStats.load(localFiles.blocksDir, task.fileId).absolutePathToOriginal;
-          FileChannel channel = FileChannel.open(path, WRITE).position(task.blockId * BLOCK_SIZE);
-          try (OutputStream out = Channels.newOutputStream(channel);
-               ByteArrayInputStream in = new ByteArrayInputStream(res.content)) {
-            IOUtils.copy(in, out);
-          } catch (IOException ignored) {
-            return;
-          }
-        } catch (IOException ignored) {
-          return;
-        }
+    private void loadFrom(Seed seed, FileChannel channel) {
+      InetSocketAddress address = new InetSocketAddress(seed.ip, seed.port);
+      PeerConnection peer = peers.computeIfAbsent(address, key -> new PeerConnection(key, window));
 
-        localFiles.markAsReady(task.fileId, task.blockId);
-      } finally {
-        inProgress.remove(task);
+      try {
+        Set<Integer> available = new HashSet<>(Stat.makeRequest(peer, fileId).blocksIndexes);
+        java.util.List<Integer> wanted = blocks.stream().filter(available::contains).collect(Collectors.toList());
+        if (wanted.isEmpty()) return;
+
+        // blocks are written as they come, the ones loaded before a failure are kept
+        Get.makeRequests(peer, fileId, wanted, (blockId, content) -> {
+          ByteBuffer block = ByteBuffer.wrap(content);
+          long position = (long) blockId * BLOCK_SIZE;
+          while (block.hasRemaining()) position += channel.write(block, position);
+
+          localFiles.markAsReady(fileId, blockId);
+          blocks.remove(blockId);
+        });
+      } catch (IOException err) {
+        peers.remove(address, peer);
+        closeQuietly(peer);
       }
     }
   }
 
-  private static Set<Task> concurrentHashSet() {
+  private static void closeQuietly(Closeable closeable) {
+    try {
+      closeable.close();
+    } catch (IOException ignored) {
+    }
+  }
+
+  private static Set<Integer> concurrentHashSet() {
     return Collections.newSetFromMap(new ConcurrentHashMap<>());
   }
 }
@@ -29,6 +29,11 @@ public class FileStats {
     return loadedBlocks.invert();
   }
 
+  public int completedPercent() {
+    int total = loadedBlocks.totalNumber;
+    return total == 0 ? 100 : 100 * loadedBlocks.indexes.size() / total;
+  }
+
 
   public static FileStats load(Path blocksDirs, int fileId) throws IOException {
     Path index = getStatsIndexFile(blocksDirs, fileId);
@@ -49,8 +49,8 @@ public class LocalFiles {
   public void markAsReady(int fileId, int blockIdx) {
     stats.computeIfPresent(fileId, (key, stat) -> {
       try {
-        stat.dump(blocksDir);
         stat.loadedBlocks.indexes.add(blockIdx);
+        stat.dump(blocksDir);
       } catch (IOException e) {
         e.printStackTrace();
       }
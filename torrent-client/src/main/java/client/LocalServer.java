@@ -1,55 +1,83 @@
 package client;
 
-import org.apache.commons.io.IOUtils;
-import org.apache.commons.io.input.BoundedInputStream;
+import common.TaskExecutors;
 
 import java.io.*;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static client.Cli.log;
-import static java.nio.channels.Channels.newInputStream;
 import static java.nio.file.StandardOpenOption.READ;
 
+/**
+ * Serves blocks of local files to other clients. A connection either sends a single request and is closed,
+ * or starts with <tt>SESSION</tt> and then sends framed requests as long as it needs, see {@link #serveFrames}.
+ * <p>
+ * Connections are accepted as channels, so a block is sent by {@link FileChannel#transferTo} straight from
+ * the page cache to the socket (sendfile), without copies through the heap.
+ */
 public class LocalServer implements Closeable {
+  public static final int SESSION = 0;
   public static final int STAT_REQUEST = 1;
   public static final int GET_REQUEST = 2;
+  private static final int MAX_FRAME_SIZE = 1024;  // requests are a few ints
+  private static final int IDLE_TIMEOUT_MILLIS = 60_000;  // a session without requests for that long is closed
+  public static final int UPLOAD_SLOTS = 8;  // uploads at once the client is glad to serve, told to the tracker
   public final LocalFiles localFiles;
   public final short portToBind;
 
-  private final ServerSocket serverSocket;
-  private final ExecutorService pool = Executors.newCachedThreadPool();
+  private final ServerSocketChannel serverChannel;
+  private final ExecutorService pool;
+  private final AtomicInteger uploads = new AtomicInteger();
 
 
   public LocalServer(LocalFiles localFiles, short portToBind) throws IOException {
+    this(localFiles, portToBind, Executors.newCachedThreadPool());
+  }
+
+  /**
+   * The accepting loop and every connection are tasks of the <tt>pool</tt>, see {@link TaskExecutors#newExecutor}.
+   */
+  public LocalServer(LocalFiles localFiles, short portToBind, ExecutorService pool) throws IOException {
     this.localFiles = localFiles;
     this.portToBind = portToBind;
-    this.serverSocket = new ServerSocket(portToBind);
+    this.serverChannel = ServerSocketChannel.open().bind(new InetSocketAddress(portToBind));
+    this.pool = pool;
     pool.submit(this::listen);
   }
 
+  /**
+   * Upload slots not taken by blocks being sent right now, more uploads are served too, but slower.
+   */
+  public int freeSlots() {
+    return Math.max(0, UPLOAD_SLOTS - uploads.get());
+  }
+
   @Override public void close() throws IOException {
     log.info("Server shutdown");
     try {
-      serverSocket.close();
+      serverChannel.close();
     } finally {
       pool.shutdown();
     }
   }
 
   private void listen() {
-    log.info("Start listening clients on {}:{}", serverSocket.getInetAddress(), serverSocket.getLocalPort());
+    log.info("Start listening clients on {}", serverChannel.socket().getLocalSocketAddress());
 
-    while (!Thread.interrupted()) {
+    while (serverChannel.isOpen()) {
       try {
-        pool.submit(handle(serverSocket.accept()));
+        pool.submit(handle(serverChannel.accept().socket()));
       } catch (IOException err) {
-        log.error("Error while accepting socket", err);
+        if (serverChannel.isOpen()) log.error("Error while accepting socket", err);
       }
     }
   }
@@ -59,32 +87,19 @@ public class LocalServer implements Closeable {
       log.debug("Connected        ", client.getInetAddress(), client.getPort());
 
       try (Socket socket = client;
-           DataInputStream in = new DataInputStream(socket.getInputStream());
-           DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+           DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+           DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
       ) {
+        socket.setTcpNoDelay(true);  // a block follows its header by a separate write, it's not delayed for an ACK
         byte requestMethodIdx = in.readByte();
 
-        switch (requestMethodIdx) {
-          case STAT_REQUEST: {
-            log.info("/stat requested");
-            int fileId = in.readInt();
-            for (Integer idx : FileStats.load(localFiles.blocksDir, fileId).loadedBlocks)
-              out.writeInt(idx);
-            break;
-          }
-
-          case GET_REQUEST: {
-            log.info("/get requested");
-            int fileId = in.readInt();
-            int blockId = in.readInt();
-            Path path = FileStats.load(localFiles.blocksDir, fileId).absolutePathToOriginal;
-            FileChannel channel = FileChannel.open(path, READ).position(blockId * LocalFiles.BLOCK_SIZE);
-            try (InputStream block = new BoundedInputStream(newInputStream(channel), LocalFiles.BLOCK_SIZE)) {
-              IOUtils.copy(block, out);
-            }
-            break;
-          }
+        if (requestMethodIdx == SESSION) {
+          serveFrames(socket, in, out);
+        } else {
+          respond(requestMethodIdx, in, out, socket.getChannel(), false);
         }
+      } catch (SocketTimeoutException err) {
+        log.debug("Timed out        {}:{}", client.getInetAddress(), client.getPort());
       } catch (IOException err) {
         log.error("Error while handling client {}", client, err);
       }
@@ -93,4 +108,74 @@ public class LocalServer implements Closeable {
     };
   }
 
+  // requests are answered in order, responses are flushed once the pipelined requests are drained
+  private void serveFrames(Socket client, DataInputStream in, DataOutputStream out) throws IOException {
+    client.setSoTimeout(IDLE_TIMEOUT_MILLIS);
+
+    while (true) {
+      int length;
+      try {
+        length = in.readInt();
+      } catch (EOFException hungUp) {
+        out.flush();
+        return;
+      }
+
+      if (length <= 0 || length > MAX_FRAME_SIZE) throw new IOException("Bad frame length " + length);
+      byte[] request = new byte[length];
+      in.readFully(request);
+
+      DataInputStream frame = new DataInputStream(new ByteArrayInputStream(request));
+      respond(frame.readByte(), frame, out, client.getChannel(), true);
+      if (in.available() == 0) out.flush();
+    }
+  }
+
+  // a framed response is preceded by its length
+  private void respond(byte requestMethodIdx, DataInputStream in, DataOutputStream out, SocketChannel socket,
+                       boolean isFramed) throws IOException {
+    switch (requestMethodIdx) {
+      case STAT_REQUEST: {
+        log.debug("/stat requested");
+        int fileId = in.readInt();
+        BlocksSet blocks = FileStats.load(localFiles.blocksDir, fileId).loadedBlocks;
+        if (isFramed) out.writeInt(Integer.BYTES * (1 + blocks.indexes.size()));
+        out.writeInt(blocks.indexes.size());
+        for (Integer idx : blocks)
+          out.writeInt(idx);
+        break;
+      }
+
+      case GET_REQUEST: {
+        log.debug("/get requested");
+        int fileId = in.readInt();
+        int blockId = in.readInt();
+        uploads.incrementAndGet();
+        try {
+          sendBlock(fileId, blockId, out, socket, isFramed);
+        } finally {
+          uploads.decrementAndGet();
+        }
+        break;
+      }
+
+      default:
+        throw new IOException("Unknown request " + requestMethodIdx);
+    }
+  }
+
+  // the buffered output goes first, then the block from the file to the socket;
+  // the last block of a file may be shorter than the others
+  private void sendBlock(int fileId, int blockId, DataOutputStream out, SocketChannel socket, boolean isFramed)
+      throws IOException {
+    Path path = FileStats.load(localFiles.blocksDir, fileId).absolutePathToOriginal;
+    try (FileChannel file = FileChannel.open(path, READ)) {
+      long position = (long) blockId * LocalFiles.BLOCK_SIZE;
+      long length = Math.max(0, Math.min(LocalFiles.BLOCK_SIZE, file.size() - position));
+      if (isFramed) out.writeInt((int) length);
+      out.flush();
+
+      for (long sent = 0; sent < length; ) sent += file.transferTo(position + sent, length - sent, socket);
+    }
+  }
 }
@@ -0,0 +1,37 @@
+package client.Operations;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Files added and removed since the last update, the response is false if the tracker
+ * doesn't know the client anymore, then a full {@link Update} is needed.
+ */
+public class DeltaUpdate {
+  private static final byte REQUEST_ID = 5;
+
+  public static Update.Response makeRequest(TrackerConnection tracker, short localPort, int[] added, int[] removed)
+      throws IOException {
+    return tracker.exchange(out -> writeRequest(out, localPort, added, removed), DeltaUpdate::readResponse);
+  }
+
+  public static Update.Response makeRequest(TrackerCluster tracker, TrackerConnection node, short localPort,
+                                            int[] added, int[] removed) throws IOException {
+    return tracker.exchange(node, out -> writeRequest(out, localPort, added, removed), DeltaUpdate::readResponse);
+  }
+
+  public static void writeRequest(DataOutputStream out, short localPort, int[] added, int[] removed)
+      throws IOException {
+    out.writeByte(REQUEST_ID);
+    out.writeShort(localPort);
+    out.writeInt(added.length);
+    for (int id : added) out.writeInt(id);
+    out.writeInt(removed.length);
+    for (int id : removed) out.writeInt(id);
+  }
+
+  public static Update.Response readResponse(DataInputStream in) throws IOException {
+    return Update.readResponse(in);
+  }
+}
@@ -1,36 +1,30 @@
 package client.Operations;
 
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.Socket;
-import java.util.ArrayList;
-import java.util.Collection;
 
 public class Get {
   private static final byte REQUEST_ID = 2;
 
-  public static class Response {
-    public final byte[] content;
+  @FunctionalInterface
+  public interface BlockConsumer {
+    void accept(int blockId, byte[] content) throws IOException;
+  }
 
-    public Response(byte[] content) {
-      this.content = content;
-    }
+  /**
+   * Gets the blocks through the session with the peer, they are handed to <tt>onBlock</tt> in the order asked,
+   * see {@link PeerConnection#stream}.
+   */
+  public static void makeRequests(PeerConnection peer, int fileId, java.util.List<Integer> blockIds,
+                                  BlockConsumer onBlock) throws IOException {
+    peer.stream(blockIds.size(), i -> out -> writeRequest(out, fileId, blockIds.get(i)),
+        (i, content) -> onBlock.accept(blockIds.get(i), content));
   }
 
-  public static Response makeRequest(String serverIp, short serverPort, int fileId, int blockId, int resSize)
-      throws IOException {
-    try (Socket socket = new Socket(serverIp, serverPort);
-         DataInputStream in = new DataInputStream(socket.getInputStream());
-         DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
-      out.writeByte(REQUEST_ID);
-      out.writeInt(fileId);
-      out.writeInt(blockId);
-      out.flush();
 
-      byte[] content = new byte[resSize];
-      in.readFully(content);
-      return new Response(content);
-    }
+  static void writeRequest(DataOutputStream out, int fileId, int blockId) throws IOException {
+    out.writeByte(REQUEST_ID);
+    out.writeInt(fileId);
+    out.writeInt(blockId);
   }
 }
@@ -0,0 +1,43 @@
+package client.Operations;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Spare upload capacity of the client and how much it has of the files it downloads, sent after an update,
+ * so the tracker gives idle seeds with more of a file first. Files not listed are complete.
+ * The response is false if the tracker doesn't know the client anymore, then a full {@link Update} is needed.
+ */
+public class Hints {
+  private static final byte REQUEST_ID = 13;
+
+  public static Update.Response makeRequest(TrackerConnection tracker, short localPort, int freeSlots,
+                                            Map<Integer, Integer> completedPercents) throws IOException {
+    return tracker.exchange(out -> writeRequest(out, localPort, freeSlots, completedPercents), Hints::readResponse);
+  }
+
+  public static Update.Response makeRequest(TrackerCluster tracker, TrackerConnection node, short localPort,
+                                            int freeSlots, Map<Integer, Integer> completedPercents)
+      throws IOException {
+    return tracker.exchange(node, out -> writeRequest(out, localPort, freeSlots, completedPercents),
+        Hints::readResponse);
+  }
+
+  public static void writeRequest(DataOutputStream out, short localPort, int freeSlots,
+                                  Map<Integer, Integer> completedPercents) throws IOException {
+    out.writeByte(REQUEST_ID);
+    out.writeShort(localPort);
+    out.writeShort(freeSlots);
+    out.writeInt(completedPercents.size());
+    for (Map.Entry<Integer, Integer> file : completedPercents.entrySet()) {
+      out.writeInt(file.getKey());
+      out.writeByte(file.getValue());
+    }
+  }
+
+  public static Update.Response readResponse(DataInputStream in) throws IOException {
+    return Update.readResponse(in);
+  }
+}
@@ -3,9 +3,9 @@ package client.Operations;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
 
 public class List {
   private static final byte REQUEST_ID = 1;
@@ -30,19 +30,33 @@ public class List {
     }
   }
 
-  public static Response makeRequest(String serverIp, short serverPort) throws IOException {
-    ArrayList<Response.File> files = new ArrayList<>();
+  public static Response makeRequest(TrackerConnection tracker) throws IOException {
+    return tracker.exchange(List::writeRequest, List::readResponse);
+  }
 
-    try (Socket socket = new Socket(serverIp, serverPort);
-         DataInputStream in = new DataInputStream(socket.getInputStream());
-         DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
-      out.writeByte(REQUEST_ID);
-      out.flush();
+  /**
+   * Files of all the nodes of a cluster, in the order of ids.
+   */
+  public static Response makeRequest(TrackerCluster cluster) throws IOException {
+    java.util.List<TrackerConnection> nodes = cluster.nodes();
+    if (nodes.size() == 1) return makeRequest(nodes.get(0));
 
-      int numOfFiles = in.readInt();
-      while (numOfFiles-- > 0) {
-        files.add(new Response.File(in.readInt(), in.readUTF(), in.readLong()));
-      }
+    java.util.List<Response.File> files = new ArrayList<>();
+    for (TrackerConnection node : nodes) files.addAll(makeRequest(node).files);
+    files.sort(Comparator.comparingInt(file -> file.id));
+    return new Response(files);
+  }
+
+  public static void writeRequest(DataOutputStream out) throws IOException {
+    out.writeByte(REQUEST_ID);
+  }
+
+  public static Response readResponse(DataInputStream in) throws IOException {
+    ArrayList<Response.File> files = new ArrayList<>();
+
+    int numOfFiles = in.readInt();
+    while (numOfFiles-- > 0) {
+      files.add(new Response.File(in.readInt(), in.readUTF(), in.readLong()));
     }
 
     return new Response(files);
@@ -0,0 +1,32 @@
+package client.Operations;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Name and size of a single file, instead of the whole {@link List}.
+ */
+public class Lookup {
+  private static final byte REQUEST_ID = 6;
+
+  public static class Response {
+    public final List.Response.File file;  // null if there is no such file
+
+    public Response(List.Response.File file) { this.file = file; }
+  }
+
+  public static Response makeRequest(TrackerConnection tracker, int fileId) throws IOException {
+    return tracker.exchange(out -> writeRequest(out, fileId), in -> readResponse(in, fileId));
+  }
+
+  public static void writeRequest(DataOutputStream out, int fileId) throws IOException {
+    out.writeByte(REQUEST_ID);
+    out.writeInt(fileId);
+  }
+
+  public static Response readResponse(DataInputStream in, int fileId) throws IOException {
+    if (!in.readBoolean()) return new Response(null);
+    return new Response(new List.Response.File(fileId, in.readUTF(), in.readLong()));
+  }
+}
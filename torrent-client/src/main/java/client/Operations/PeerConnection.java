@@ -0,0 +1,127 @@
+package client.Operations;
+
+import client.Operations.TrackerConnection.Decoder;
+import client.Operations.TrackerConnection.Encoder;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.function.IntFunction;
+
+/**
+ * A long-lived session with another client, instead of a connection per request.
+ * Requests are sent as frames <tt><length: Int> <request></tt> after the session byte,
+ * and the peer answers them in the same order, framed the same way.
+ * <p>
+ * Gets of many blocks are pipelined: up to <tt>window</tt> requests are in flight at once,
+ * a new one is sent as soon as the oldest one is answered, so the peer never waits for the next request.
+ */
+public class PeerConnection implements Closeable {
+  public static final int DEFAULT_WINDOW = 16;
+  private static final byte SESSION = 0;
+  private static final int MAX_RESPONSE_SIZE = 64 << 20;  // a stat of 16M blocks, a block is much smaller
+
+  private final InetSocketAddress address;
+  private final int window;
+  private Socket socket;
+  private DataInputStream in;
+  private DataOutputStream out;
+
+  @FunctionalInterface
+  public interface FrameConsumer {
+    void accept(int idx, byte[] frame) throws IOException;
+  }
+
+
+  public PeerConnection(InetSocketAddress address, int window) {
+    if (window <= 0) throw new IllegalArgumentException("Window must be positive: " + window);
+    this.address = address;
+    this.window = window;
+  }
+
+  public <T> T exchange(Encoder request, Decoder<T> decoder) throws IOException {
+    Object[] response = new Object[1];
+    stream(1, i -> request, (i, frame) ->
+        response[0] = decoder.readFrom(new DataInputStream(new ByteArrayInputStream(frame))));
+    @SuppressWarnings("unchecked") T result = (T) response[0];
+    return result;
+  }
+
+  /**
+   * Sends <tt>count</tt> requests, keeping at most <tt>window</tt> of them unanswered, and hands every response
+   * to <tt>onResponse</tt> as it comes, in the order of requests.
+   * A session that was idle for a while may be already closed by the peer, so it's reopened once,
+   * if nothing was answered yet.
+   */
+  public synchronized void stream(int count, IntFunction<Encoder> requests, FrameConsumer onResponse)
+      throws IOException {
+    boolean mayBeStale = socket != null;
+
+    while (true) {
+      int[] received = {0};
+      try {
+        connectIfClosed();
+        pipeline(count, requests, (i, frame) -> {
+          received[0]++;
+          onResponse.accept(i, frame);
+        });
+        return;
+      } catch (IOException err) {
+        disconnect();
+        if (!mayBeStale || received[0] > 0) throw err;
+        mayBeStale = false;
+      } catch (RuntimeException err) {  // the responses left in the session would be taken for the next requests
+        disconnect();
+        throw err;
+      }
+    }
+  }
+
+  @Override public synchronized void close() throws IOException {
+    disconnect();
+  }
+
+
+  private void pipeline(int count, IntFunction<Encoder> requests, FrameConsumer onResponse) throws IOException {
+    int sent = 0;
+    for (int received = 0; received < count; received++) {
+      if (sent < count && sent < received + window) {
+        while (sent < count && sent < received + window) writeFrame(requests.apply(sent++));
+        out.flush();
+      }
+
+      int length = in.readInt();
+      if (length < 0 || length > MAX_RESPONSE_SIZE) throw new IOException("Bad frame length " + length);
+
+      byte[] frame = new byte[length];
+      in.readFully(frame);
+      onResponse.accept(received, frame);
+    }
+  }
+
+  private void writeFrame(Encoder request) throws IOException {
+    ByteArrayOutputStream frame = new ByteArrayOutputStream();
+    request.writeTo(new DataOutputStream(frame));
+    out.writeInt(frame.size());
+    frame.writeTo(out);
+  }
+
+  private void connectIfClosed() throws IOException {
+    if (socket != null) return;
+
+    socket = new Socket(address.getAddress(), address.getPort());
+    in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    out.writeByte(SESSION);
+  }
+
+  private void disconnect() throws IOException {
+    if (socket == null) return;
+
+    try {
+      socket.close();
+    } finally {
+      socket = null;
+    }
+  }
+}
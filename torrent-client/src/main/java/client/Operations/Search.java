@@ -0,0 +1,75 @@
+package client.Operations;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+
+/**
+ * A page of files whose names start with the query or contain it, case insensitive.
+ * The next page is requested with <tt>afterId</tt> set to the cursor of the previous one.
+ */
+public class Search {
+  private static final byte REQUEST_ID = 7;
+
+  public static class Response {
+    public final Collection<List.Response.File> files;
+    public final int nextCursor;  // -1 if there are no more files
+
+    public Response(Collection<List.Response.File> files, int nextCursor) {
+      this.files = files;
+      this.nextCursor = nextCursor;
+    }
+  }
+
+  public static Response makeRequest(TrackerConnection tracker, String query, boolean isPrefix, int afterId, int limit)
+      throws IOException {
+    return tracker.exchange(out -> writeRequest(out, query, isPrefix, afterId, limit), Search::readResponse);
+  }
+
+  /**
+   * Every node of a cluster is asked for a page after the cursor, the pages are merged by ids.
+   */
+  public static Response makeRequest(TrackerCluster cluster, String query, boolean isPrefix, int afterId, int limit)
+      throws IOException {
+    java.util.List<TrackerConnection> nodes = cluster.nodes();
+    if (nodes.size() == 1) return makeRequest(nodes.get(0), query, isPrefix, afterId, limit);
+
+    java.util.List<List.Response.File> files = new ArrayList<>();
+    boolean hasMore = false;
+    for (TrackerConnection node : nodes) {
+      Response page = makeRequest(node, query, isPrefix, afterId, limit);
+      files.addAll(page.files);
+      hasMore |= page.nextCursor != -1;
+    }
+
+    files.sort(Comparator.comparingInt(file -> file.id));
+    if (files.size() > limit) {
+      files = new ArrayList<>(files.subList(0, limit));
+      hasMore = true;
+    }
+    return new Response(files, hasMore && !files.isEmpty() ? files.get(files.size() - 1).id : -1);
+  }
+
+  public static void writeRequest(DataOutputStream out, String query, boolean isPrefix, int afterId, int limit)
+      throws IOException {
+    out.writeByte(REQUEST_ID);
+    out.writeBoolean(isPrefix);
+    out.writeUTF(query);
+    out.writeInt(afterId);
+    out.writeInt(limit);
+  }
+
+  public static Response readResponse(DataInputStream in) throws IOException {
+    int numOfFiles = in.readInt();
+    ArrayList<List.Response.File> files = new ArrayList<>(numOfFiles);
+
+    while (numOfFiles-- > 0) {
+      files.add(new List.Response.File(in.readInt(), in.readUTF(), in.readLong()));
+    }
+
+    return new Response(files, in.readInt());
+  }
+}
@@ -0,0 +1,62 @@
+package client.Operations;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Nodes of the tracker cluster and their tokens on the ring of file ids, see {@link TrackerCluster}.
+ * A tracker which is not clustered answers with no nodes.
+ */
+public class Shards {
+  private static final byte REQUEST_ID = 9;
+
+  public static class Response {
+    public final java.util.List<Node> nodes;
+    public final int[] tokens;  // sorted
+    public final int[] owners;  // a node of each token
+
+    public Response(java.util.List<Node> nodes, int[] tokens, int[] owners) {
+      this.nodes = nodes;
+      this.tokens = tokens;
+      this.owners = owners;
+    }
+
+    public static class Node {
+      public final String host;
+      public final short port;
+
+      public Node(String host, short port) {
+        this.host = host;
+        this.port = port;
+      }
+    }
+  }
+
+  public static Response makeRequest(TrackerConnection tracker) throws IOException {
+    return tracker.exchange(Shards::writeRequest, Shards::readResponse);
+  }
+
+  public static void writeRequest(DataOutputStream out) throws IOException {
+    out.writeByte(REQUEST_ID);
+  }
+
+  public static Response readResponse(DataInputStream in) throws IOException {
+    int numOfNodes = in.readInt();
+    java.util.List<Response.Node> nodes = new ArrayList<>(numOfNodes);
+    while (numOfNodes-- > 0) {
+      nodes.add(new Response.Node(in.readUTF(), in.readShort()));
+    }
+
+    int numOfTokens = in.readInt();
+    int[] tokens = new int[numOfTokens];
+    int[] owners = new int[numOfTokens];
+    for (int i = 0; i < numOfTokens; i++) {
+      tokens[i] = in.readInt();
+      owners[i] = in.readInt();
+    }
+
+    return new Response(nodes, tokens, owners);
+  }
+}
@@ -4,12 +4,16 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.Socket;
-import java.util.ArrayList;
-import java.util.Collection;
+import java.util.*;
 
+/**
+ * Seeds of a file: all of them, or a random sample of at most <tt>maxPeers</tt> ones.
+ */
 public class Sources {
   private static final byte REQUEST_ID = 3;
+  private static final byte SAMPLED_REQUEST_ID = 8;
+  private static final byte BATCHED_REQUEST_ID = 12;
+  private static final int MAX_BATCH_SIZE = 1000;  // files in one request, as on the tracker
 
   public static class Response {
     public final java.util.List<Seed> seeds;
@@ -29,25 +33,92 @@ public class Sources {
     }
   }
 
-  public static Response makeRequest(String serverIp, short serverPort, int fileId)
-      throws IOException {
+  public static Response makeRequest(TrackerConnection tracker, int fileId) throws IOException {
+    return tracker.exchange(out -> writeRequest(out, fileId), Sources::readResponse);
+  }
+
+  public static Response makeRequest(TrackerConnection tracker, int fileId, int maxPeers) throws IOException {
+    return tracker.exchange(out -> writeRequest(out, fileId, maxPeers), Sources::readResponse);
+  }
+
+  public static Response makeRequest(UdpTracker tracker, int fileId, int maxPeers) throws IOException {
+    return tracker.exchange(out -> writeRequest(out, fileId, maxPeers), Sources::readResponse);
+  }
+
+  /**
+   * Asks for seeds of several files by one batched request, a long list is split into several ones,
+   * which are pipelined through the connection.
+   */
+  public static Map<Integer, Response> makeRequests(TrackerConnection tracker, Collection<Integer> fileIds,
+                                                    int maxPeers) throws IOException {
+    return merge(tracker.exchangeAll(batches(fileIds, maxPeers), Sources::readResponses));
+  }
+
+  /**
+   * Same, over UDP if the node has a UDP port, see {@link TrackerCluster#exchange}.
+   * A batch must fit a datagram then, that's a few files.
+   */
+  public static Map<Integer, Response> makeRequests(TrackerCluster tracker, TrackerConnection node,
+                                                    Collection<Integer> fileIds, int maxPeers) throws IOException {
+    return merge(tracker.exchangeAll(node, batches(fileIds, maxPeers), Sources::readResponses));
+  }
+
+  public static void writeRequest(DataOutputStream out, int fileId) throws IOException {
+    out.writeByte(REQUEST_ID);
+    out.writeInt(fileId);
+  }
+
+  public static void writeRequest(DataOutputStream out, int fileId, int maxPeers) throws IOException {
+    out.writeByte(SAMPLED_REQUEST_ID);
+    out.writeInt(fileId);
+    out.writeInt(maxPeers);
+  }
+
+  public static void writeRequest(DataOutputStream out, Collection<Integer> fileIds, int maxPeers) throws IOException {
+    out.writeByte(BATCHED_REQUEST_ID);
+    out.writeInt(maxPeers);
+    out.writeInt(fileIds.size());
+    for (int fileId : fileIds) out.writeInt(fileId);
+  }
+
+  public static Map<Integer, Response> readResponses(DataInputStream in) throws IOException {
+    Map<Integer, Response> responses = new HashMap<>();
+
+    int numOfFiles = in.readInt();
+    while (numOfFiles-- > 0) {
+      int fileId = in.readInt();
+      responses.put(fileId, readResponse(in));
+    }
+
+    return responses;
+  }
+
+  public static Response readResponse(DataInputStream in) throws IOException {
     java.util.List<Response.Seed> seeds = new ArrayList<>();
 
-    try (Socket socket = new Socket(serverIp, serverPort);
-         DataInputStream in = new DataInputStream(socket.getInputStream());
-         DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
-      out.writeByte(REQUEST_ID);
-      out.writeInt(fileId);
-      out.flush();
-
-      int numOfSeeds = in.readInt();
-      while (numOfSeeds-- > 0) {
-        byte[] ipBytes = new byte[4];
-        in.readFully(ipBytes, 0, ipBytes.length);
-        seeds.add(new Response.Seed(InetAddress.getByAddress(ipBytes), in.readShort()));
-      }
+    int numOfSeeds = in.readInt();
+    while (numOfSeeds-- > 0) {
+      byte[] ipBytes = new byte[4];
+      in.readFully(ipBytes, 0, ipBytes.length);
+      seeds.add(new Response.Seed(InetAddress.getByAddress(ipBytes), in.readShort()));
     }
 
     return new Response(seeds);
   }
+
+  private static java.util.List<TrackerConnection.Encoder> batches(Collection<Integer> fileIds, int maxPeers) {
+    java.util.List<Integer> ids = new ArrayList<>(fileIds);
+    java.util.List<TrackerConnection.Encoder> requests = new ArrayList<>();
+    for (int from = 0; from < ids.size(); from += MAX_BATCH_SIZE) {
+      java.util.List<Integer> batch = ids.subList(from, Math.min(from + MAX_BATCH_SIZE, ids.size()));
+      requests.add(out -> writeRequest(out, batch, maxPeers));
+    }
+    return requests;
+  }
+
+  private static Map<Integer, Response> merge(java.util.List<Map<Integer, Response>> batches) {
+    Map<Integer, Response> result = new HashMap<>();
+    for (Map<Integer, Response> batch : batches) result.putAll(batch);
+    return result;
+  }
 }
@@ -5,7 +5,6 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
 import java.util.ArrayList;
-import java.util.Collection;
 
 public class Stat {
   private static final byte REQUEST_ID = 1;
@@ -20,20 +19,30 @@ public class Stat {
 
   public static Response makeRequest(String serverIp, short serverPort, int fileId)
       throws IOException {
-    java.util.List<Integer> blocks = new ArrayList<>();
-
     try (Socket socket = new Socket(serverIp, serverPort);
          DataInputStream in = new DataInputStream(socket.getInputStream());
          DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
-      out.writeByte(REQUEST_ID);
-      out.writeInt(fileId);
+      writeRequest(out, fileId);
       out.flush();
-
-      int numOfBlocks = in.readInt();
-      while (numOfBlocks-- > 0)
-        blocks.add(in.readInt());
+      return readResponse(in);
     }
+  }
+
+  public static Response makeRequest(PeerConnection peer, int fileId) throws IOException {
+    return peer.exchange(out -> writeRequest(out, fileId), Stat::readResponse);
+  }
+
 
+  static void writeRequest(DataOutputStream out, int fileId) throws IOException {
+    out.writeByte(REQUEST_ID);
+    out.writeInt(fileId);
+  }
+
+  static Response readResponse(DataInputStream in) throws IOException {
+    java.util.List<Integer> blocks = new ArrayList<>();
+    int numOfBlocks = in.readInt();
+    while (numOfBlocks-- > 0)
+      blocks.add(in.readInt());
     return new Response(blocks);
   }
 }
@@ -0,0 +1,149 @@
+package client.Operations;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Connections to every node of the tracker cluster. The shard map is asked from the first tracker
+ * on the first use: a file belongs to the node of the first token at or after <tt>hash(fileId)</tt>,
+ * so sources and updates of the file go to that node, while the catalog is split between all of them.
+ * A tracker which is not clustered is the only node and owns every file.
+ * <p>
+ * Given the UDP port of the first tracker, its announces and sources go as datagrams, see {@link #exchange};
+ * the other nodes of a cluster are asked over TCP, their UDP ports aren't known.
+ */
+public class TrackerCluster implements Closeable {
+  private final String serverIp;
+  private final short serverPort;
+  private final short udpPort;  // 0 if announces go over TCP only
+  private final TrackerConnection seed;
+  private java.util.List<TrackerConnection> nodes;  // null until the shard map is known
+  private int[] tokens;
+  private int[] owners;
+  private TrackerConnection udpNode;  // the node of the first tracker
+  private volatile UdpTracker udp;  // null if there is no UDP port, or datagrams don't get through
+
+
+  public TrackerCluster(String serverIp, short serverPort) {
+    this(serverIp, serverPort, (short) 0);
+  }
+
+  public TrackerCluster(String serverIp, short serverPort, short udpPort) {
+    this.serverIp = serverIp;
+    this.serverPort = serverPort;
+    this.udpPort = udpPort;
+    this.seed = new TrackerConnection(serverIp, serverPort);
+  }
+
+  public synchronized java.util.List<TrackerConnection> nodes() throws IOException {
+    if (nodes != null) return nodes;
+
+    Shards.Response shards = Shards.makeRequest(seed);
+    if (shards.nodes.isEmpty()) {
+      tokens = new int[]{0};
+      owners = new int[]{0};
+      nodes = Collections.singletonList(seed);
+      udpNode = seed;
+      openUdp();
+      return nodes;
+    }
+
+    java.util.List<TrackerConnection> connections = new ArrayList<>();
+    for (Shards.Response.Node node : shards.nodes) {
+      TrackerConnection connection = new TrackerConnection(node.host, node.port);
+      if (node.host.equals(serverIp) && node.port == serverPort) udpNode = connection;
+      connections.add(connection);
+    }
+    seed.close();
+    openUdp();
+
+    tokens = shards.tokens;
+    owners = shards.owners;
+    nodes = Collections.unmodifiableList(connections);
+    return nodes;
+  }
+
+  public synchronized TrackerConnection ownerOf(int fileId) throws IOException {
+    java.util.List<TrackerConnection> nodes = nodes();
+    int idx = Arrays.binarySearch(tokens, mix(fileId));
+    if (idx < 0) idx = -idx - 1;
+    return nodes.get(owners[idx == tokens.length ? 0 : idx]);
+  }
+
+  /**
+   * A random node, for requests which may go anywhere, like an upload.
+   */
+  public TrackerConnection any() throws IOException {
+    java.util.List<TrackerConnection> nodes = nodes();
+    return nodes.get(ThreadLocalRandom.current().nextInt(nodes.size()));
+  }
+
+  /**
+   * Files of each node, every node is in the result even if it owns none of them.
+   */
+  public Map<TrackerConnection, Set<Integer>> partition(Collection<Integer> fileIds) throws IOException {
+    Map<TrackerConnection, Set<Integer>> result = new LinkedHashMap<>();
+    for (TrackerConnection node : nodes()) result.put(node, new HashSet<>());
+    for (int fileId : fileIds) result.get(ownerOf(fileId)).add(fileId);
+    return result;
+  }
+
+  /**
+   * Sends an announce or a sources request to the node, as a datagram if it's the node with the UDP port.
+   * Datagrams which go unanswered, as when a firewall drops them, are given up for good
+   * and the request goes through the connection to the node.
+   */
+  public <T> T exchange(TrackerConnection node, TrackerConnection.Encoder request,
+                        TrackerConnection.Decoder<T> decoder) throws IOException {
+    return exchangeAll(node, Collections.singletonList(request), decoder).get(0);
+  }
+
+  /**
+   * Same as {@link #exchange}, for several requests, they are pipelined if they go over TCP.
+   */
+  public <T> java.util.List<T> exchangeAll(TrackerConnection node, java.util.List<TrackerConnection.Encoder> requests,
+                                           TrackerConnection.Decoder<T> decoder) throws IOException {
+    UdpTracker udp = this.udp;
+    if (udp == null || node != udpNode) return node.exchangeAll(requests, decoder);
+
+    java.util.List<T> responses = new ArrayList<>(requests.size());
+    try {
+      for (TrackerConnection.Encoder request : requests) responses.add(udp.exchange(request, decoder));
+      return responses;
+    } catch (SocketTimeoutException lost) {
+      closeUdp(udp);
+      responses.addAll(node.exchangeAll(requests.subList(responses.size(), requests.size()), decoder));
+      return responses;
+    }
+  }
+
+  @Override public synchronized void close() throws IOException {
+    UdpTracker udp = this.udp;
+    if (udp != null) closeUdp(udp);
+    seed.close();
+    if (nodes == null) return;
+    for (TrackerConnection node : nodes) node.close();
+  }
+
+  private void openUdp() throws IOException {
+    if (udpPort != 0 && udpNode != null) udp = new UdpTracker(serverIp, udpPort);
+  }
+
+  private synchronized void closeUdp(UdpTracker udp) {
+    if (this.udp == udp) this.udp = null;
+    udp.close();
+  }
+
+  // the finalizer of murmur3, as on the tracker
+  private static int mix(int h) {
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+}
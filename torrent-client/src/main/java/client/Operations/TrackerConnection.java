@@ -0,0 +1,163 @@
+package client.Operations;
+
+import org.apache.commons.io.input.CountingInputStream;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * One persistent connection to the tracker shared by all the operations.
+ * Requests are sent as frames <tt><length: Int> <request></tt> after the keep-alive byte,
+ * and the tracker answers them in the same order.
+ * <p>
+ * An overloaded tracker answers <tt><-1: Int> <retryAfterMillis: Int></tt> instead of the first frame and hangs up,
+ * then the requests are sent again after a pause, which doubles with every attempt and is randomized,
+ * so the rejected clients don't come back all at once.
+ */
+public class TrackerConnection implements Closeable {
+  private static final byte KEEP_ALIVE = 0;
+  private static final int BUSY = -1;
+  private static final int MAX_RESPONSE_SIZE = 1 << 30;  // the listing of tens of millions of files
+  private static final int MAX_ATTEMPTS = 5;
+  private static final int BACKOFF_MILLIS = 100;
+
+  private final String serverIp;
+  private final short serverPort;
+  private Socket socket;
+  private CountingInputStream received;  // bytes of responses to the requests being sent
+  private DataInputStream in;
+  private DataOutputStream out;
+
+  /**
+   * The tracker is still busy after all the attempts.
+   */
+  public static class BusyException extends IOException {
+    private static final long serialVersionUID = 1L;
+    public final int retryAfterMillis;
+
+    BusyException(int retryAfterMillis) {
+      super("Tracker is busy, retry after " + retryAfterMillis + " ms");
+      this.retryAfterMillis = retryAfterMillis;
+    }
+  }
+
+  @FunctionalInterface
+  public interface Encoder {
+    void writeTo(DataOutputStream out) throws IOException;
+  }
+
+  @FunctionalInterface
+  public interface Decoder<T> {
+    T readFrom(DataInputStream in) throws IOException;
+  }
+
+
+  public TrackerConnection(String serverIp, short serverPort) {
+    this.serverIp = serverIp;
+    this.serverPort = serverPort;
+  }
+
+  public <T> T exchange(Encoder request, Decoder<T> decoder) throws IOException {
+    return exchangeAll(Collections.singletonList(request), decoder).get(0);
+  }
+
+  /**
+   * For a request which must not be handled twice, such as an upload: it goes through a new connection,
+   * so it's never sent again after a failure, unless the tracker answered busy.
+   */
+  public synchronized <T> T exchangeOnce(Encoder request, Decoder<T> decoder) throws IOException {
+    disconnect();
+    return exchange(request, decoder);
+  }
+
+  /**
+   * Pipelines the requests: all of them are written at once, then the responses are read in order.
+   * A connection that was idle for a while may be already closed by the tracker, so it's reopened once,
+   * if nothing was answered yet: the requests may have been handled otherwise.
+   * A busy tracker hasn't handled any of the requests, so they are retried up to <tt>MAX_ATTEMPTS</tt> times.
+   */
+  public synchronized <T> java.util.List<T> exchangeAll(java.util.List<Encoder> requests, Decoder<T> decoder)
+      throws IOException {
+    boolean mayBeStale = socket != null;
+
+    for (int attempt = 1; ; ) {
+      try {
+        connectIfClosed();
+        received.resetByteCount();
+        return pipeline(requests, decoder);
+      } catch (BusyException busy) {
+        disconnect();
+        if (attempt++ == MAX_ATTEMPTS) throw busy;
+        backOff(busy.retryAfterMillis, attempt);
+      } catch (IOException err) {
+        boolean isAnswered = received != null && received.getByteCount() > 0;
+        disconnect();
+        if (!mayBeStale || isAnswered) throw err;
+        mayBeStale = false;
+      }
+    }
+  }
+
+  @Override public synchronized void close() throws IOException {
+    disconnect();
+  }
+
+
+  private <T> java.util.List<T> pipeline(java.util.List<Encoder> requests, Decoder<T> decoder) throws IOException {
+    for (Encoder request : requests) {
+      ByteArrayOutputStream frame = new ByteArrayOutputStream();
+      request.writeTo(new DataOutputStream(frame));
+      out.writeInt(frame.size());
+      frame.writeTo(out);
+    }
+    out.flush();
+
+    java.util.List<T> responses = new ArrayList<>(requests.size());
+    for (int i = 0; i < requests.size(); i++) {
+      int length = in.readInt();
+      if (length == BUSY) throw new BusyException(in.readInt());
+      if (length < 0 || length > MAX_RESPONSE_SIZE) throw new IOException("Bad frame length " + length);
+
+      byte[] frame = new byte[length];
+      in.readFully(frame);
+      responses.add(decoder.readFrom(new DataInputStream(new ByteArrayInputStream(frame))));
+    }
+
+    return responses;
+  }
+
+  // at least what the tracker asks for, jittered over the exponential backoff
+  private static void backOff(int retryAfterMillis, int attempt) throws InterruptedIOException {
+    int backoff = BACKOFF_MILLIS << (attempt - 1);
+    try {
+      Thread.sleep(Math.max(retryAfterMillis, backoff) + ThreadLocalRandom.current().nextInt(backoff));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while the tracker is busy");
+    }
+  }
+
+  private void connectIfClosed() throws IOException {
+    if (socket != null) return;
+
+    socket = new Socket(serverIp, serverPort);
+    received = new CountingInputStream(socket.getInputStream());
+    in = new DataInputStream(new BufferedInputStream(received));
+    out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    out.writeByte(KEEP_ALIVE);
+  }
+
+  private void disconnect() throws IOException {
+    if (socket == null) return;
+
+    try {
+      socket.close();
+    } finally {
+      socket = null;
+      received = null;
+    }
+  }
+}
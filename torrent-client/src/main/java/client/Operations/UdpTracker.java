@@ -0,0 +1,121 @@
+package client.Operations;
+
+import java.io.*;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Announces and sources over the UDP endpoint of the tracker: a datagram each way, no connection to set up.
+ * The tracker gives a connection id for the address of the client first, it's reused for a minute.
+ * A lost datagram is sent again after a timeout, which doubles with every attempt; a stale connection id
+ * is asked again once.
+ */
+public class UdpTracker implements Closeable {
+  private static final long PROTOCOL_ID = 0x41727101980L;
+  private static final int CONNECT = 0;
+  private static final int REQUEST = 1;
+  private static final int ERROR = 3;
+  private static final int MAX_DATAGRAM_SIZE = 65_507;
+  private static final int MAX_ATTEMPTS = 4;
+  private static final int TIMEOUT_MILLIS = 500;
+  private static final long CONNECTION_ID_TTL = TimeUnit.MINUTES.toNanos(1);
+
+  private final InetAddress serverIp;
+  private final int serverPort;
+  private final DatagramSocket socket;
+  private final byte[] received = new byte[MAX_DATAGRAM_SIZE];
+  private long connectionId;
+  private long connectedAt;  // nanos, 0 while there is no connection id
+
+
+  public UdpTracker(String serverIp, short serverPort) throws IOException {
+    this.serverIp = InetAddress.getByName(serverIp);
+    this.serverPort = serverPort;
+    this.socket = new DatagramSocket();
+  }
+
+  /**
+   * Sends a request in the same format as over TCP, an update or a sources one.
+   */
+  public synchronized <T> T exchange(TrackerConnection.Encoder request, TrackerConnection.Decoder<T> decoder)
+      throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    request.writeTo(new DataOutputStream(body));
+
+    for (boolean isRetry = false; ; isRetry = true) {
+      if (connectedAt == 0 || System.nanoTime() - connectedAt > CONNECTION_ID_TTL) connect();
+
+      try {
+        return decoder.readFrom(send(connectionId, REQUEST, body.toByteArray()));
+      } catch (StaleConnectionException err) {
+        connectedAt = 0;
+        if (isRetry) throw err;
+      }
+    }
+  }
+
+  @Override public synchronized void close() {
+    socket.close();
+  }
+
+
+  private void connect() throws IOException {
+    long requestedAt = System.nanoTime();
+    connectionId = send(PROTOCOL_ID, CONNECT, new byte[0]).readLong();
+    connectedAt = requestedAt;
+  }
+
+  // <connectionId: Long> <action: Int> <transactionId: Int> <body>, returns the body of the response
+  private DataInputStream send(long connectionId, int action, byte[] body) throws IOException {
+    int transactionId = ThreadLocalRandom.current().nextInt();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeLong(connectionId);
+    out.writeInt(action);
+    out.writeInt(transactionId);
+    out.write(body);
+    DatagramPacket request = new DatagramPacket(bytes.toByteArray(), bytes.size(), serverIp, serverPort);
+
+    for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+      socket.send(request);
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS << attempt);
+
+      try {
+        while (true) {
+          long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+          if (left <= 0) break;
+          socket.setSoTimeout((int) left);
+
+          DatagramPacket response = new DatagramPacket(received, received.length);
+          socket.receive(response);
+          DataInputStream in = new DataInputStream(new ByteArrayInputStream(received, 0, response.getLength()));
+          int responseAction = in.readInt();
+          if (in.readInt() != transactionId) continue;  // late answer to a previous attempt
+
+          if (responseAction == ERROR) {
+            String message = in.readUTF();
+            if (message.equals("Bad connection id")) throw new StaleConnectionException();
+            throw new IOException("Tracker error: " + message);
+          }
+          return in;
+        }
+      } catch (SocketTimeoutException timedOut) {
+        // send it again
+      }
+    }
+
+    throw new SocketTimeoutException("No answer from " + serverIp + ":" + serverPort + " after " + MAX_ATTEMPTS + " attempts");
+  }
+
+  private static class StaleConnectionException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    StaleConnectionException() {
+      super("Connection id has expired");
+    }
+  }
+}
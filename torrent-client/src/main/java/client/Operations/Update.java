@@ -3,7 +3,6 @@ package client.Operations;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.Socket;
 
 public class Update {
   private static final byte REQUEST_ID = 4;
@@ -14,18 +13,30 @@ public class Update {
     public Response(boolean isOk) { this.isOk = isOk; }
   }
 
-  public static Response makeRequest(String serverIp, short serverPort, short localPort, int[] fileIds)
+  public static Response makeRequest(TrackerConnection tracker, short localPort, int[] fileIds) throws IOException {
+    return tracker.exchange(out -> writeRequest(out, localPort, fileIds), Update::readResponse);
+  }
+
+  public static Response makeRequest(UdpTracker tracker, short localPort, int[] fileIds) throws IOException {
+    return tracker.exchange(out -> writeRequest(out, localPort, fileIds), Update::readResponse);
+  }
+
+  /**
+   * Over UDP if the node has a UDP port, see {@link TrackerCluster#exchange}.
+   */
+  public static Response makeRequest(TrackerCluster tracker, TrackerConnection node, short localPort, int[] fileIds)
       throws IOException {
-    try (Socket socket = new Socket(serverIp, serverPort);
-         DataInputStream in = new DataInputStream(socket.getInputStream());
-         DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-    ) {
-      out.writeByte(REQUEST_ID);
-      out.writeShort(localPort);
-      out.writeInt(fileIds.length);
-      for (int id : fileIds) out.writeInt(id);
-      out.flush();
-      return new Response(in.readBoolean());
-    }
+    return tracker.exchange(node, out -> writeRequest(out, localPort, fileIds), Update::readResponse);
+  }
+
+  public static void writeRequest(DataOutputStream out, short localPort, int[] fileIds) throws IOException {
+    out.writeByte(REQUEST_ID);
+    out.writeShort(localPort);
+    out.writeInt(fileIds.length);
+    for (int id : fileIds) out.writeInt(id);
+  }
+
+  public static Response readResponse(DataInputStream in) throws IOException {
+    return new Response(in.readBoolean());
   }
 }
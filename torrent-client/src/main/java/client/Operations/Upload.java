@@ -3,7 +3,6 @@ package client.Operations;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.Socket;
 
 public class Upload {
   private static final byte REQUEST_ID = 2;
@@ -14,16 +13,17 @@ public class Upload {
     public Response(int fileId) {this.fileId = fileId;}
   }
 
-  public static Response makeRequest(String serverIp, short serverPort, String fileName, long fileSize)
-      throws IOException {
-    try (Socket socket = new Socket(serverIp, serverPort);
-         DataInputStream in = new DataInputStream(socket.getInputStream());
-         DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
-      out.writeByte(REQUEST_ID);
-      out.writeUTF(fileName);
-      out.writeLong(fileSize);
-      out.flush();
-      return new Response(in.readInt());
-    }
+  public static Response makeRequest(TrackerConnection tracker, String fileName, long fileSize) throws IOException {
+    return tracker.exchangeOnce(out -> writeRequest(out, fileName, fileSize), Upload::readResponse);
+  }
+
+  public static void writeRequest(DataOutputStream out, String fileName, long fileSize) throws IOException {
+    out.writeByte(REQUEST_ID);
+    out.writeUTF(fileName);
+    out.writeLong(fileSize);
+  }
+
+  public static Response readResponse(DataInputStream in) throws IOException {
+    return new Response(in.readInt());
   }
 }